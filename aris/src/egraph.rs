@@ -0,0 +1,279 @@
+//! Equality saturation over an e-graph, for deciding whether two expressions are equivalent under a
+//! set of rewrite rules without enumerating every rewritten form of each.
+//!
+//! An e-graph stores many expressions compactly: each e-class is a set of equivalent e-nodes, and
+//! each e-node is an operator applied to e-classes rather than to expressions. Applying a rewrite
+//! `lhs => rhs` merges the class of every match of `lhs` with the class of the matching `rhs`, so
+//! the rewrites of all subterms are represented at once, and sharing keeps the graph small where
+//! `Expr::transform_set` would take cartesian products.
+//!
+//! Merging is symmetric, so this decides equivalence under the rules used in either direction,
+//! which is sound for the equivalences in `equivs`.
+
+use crate::expr::free_vars;
+use crate::expr::Expr;
+use crate::expr::Op;
+use crate::expr::QuantKind;
+use crate::rewrite_rules::unordered_op;
+use crate::symbol::Symbol;
+
+use std::collections::HashMap;
+use std::collections::HashSet;
+use std::mem;
+
+use itertools::Itertools;
+
+/// Handle to an e-class
+#[derive(Clone, Copy, Debug, PartialEq, Eq, Hash, PartialOrd, Ord)]
+pub struct ClassId(u32);
+
+#[derive(Clone, Copy, Debug, PartialEq, Eq, Hash)]
+enum Head {
+    Contra,
+    Taut,
+    Var(Symbol),
+    Apply,
+    Not,
+    Impl,
+    Assoc(Op),
+    Quant(QuantKind, Symbol),
+}
+
+/// An operator applied to e-classes. For `Head::Apply`, the first child is the function.
+#[derive(Clone, Debug, PartialEq, Eq, Hash)]
+struct ENode {
+    head: Head,
+    children: Vec<ClassId>,
+}
+
+/// Split an expression into its operator and its immediate subexpressions, in `ENode` order
+fn decompose(expr: &Expr) -> (Head, Vec<&Expr>) {
+    match expr {
+        Expr::Contra => (Head::Contra, vec![]),
+        Expr::Taut => (Head::Taut, vec![]),
+        Expr::Var { name } => (Head::Var(Symbol::intern(name)), vec![]),
+        Expr::Apply { func, args } => (Head::Apply, std::iter::once(&**func).chain(args.iter()).collect()),
+        Expr::Not { operand } => (Head::Not, vec![&**operand]),
+        Expr::Impl { left, right } => (Head::Impl, vec![&**left, &**right]),
+        Expr::Assoc { op, exprs } => (Head::Assoc(*op), exprs.iter().collect()),
+        Expr::Quant { kind, name, body } => (Head::Quant(*kind, Symbol::intern(name)), vec![&**body]),
+    }
+}
+
+/// Bindings of pattern variables to e-classes
+type Subst<'a> = HashMap<&'a str, ClassId>;
+
+/// Why `EGraph::saturate` stopped
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+pub enum Saturation {
+    /// The goal was reached
+    Goal,
+    /// No rule application changes the graph anymore, and the goal wasn't reached
+    Saturated,
+    /// The graph outgrew the node budget before either of the above
+    OutOfBudget,
+}
+
+pub struct EGraph {
+    union_find: Vec<ClassId>,
+    /// The e-nodes of each class, indexed by `ClassId`; empty for classes that were merged away
+    classes: Vec<Vec<ENode>>,
+    memo: HashMap<ENode, ClassId>,
+    commutative: bool,
+}
+
+impl EGraph {
+    /// Create an empty e-graph. If `commutative`, the operands of associative operators are
+    /// unordered, like in `Expr::sort_commutative_ops`.
+    pub fn new(commutative: bool) -> Self {
+        EGraph { union_find: vec![], classes: vec![], memo: HashMap::new(), commutative }
+    }
+    /// Number of distinct e-nodes
+    pub fn node_count(&self) -> usize {
+        self.memo.len()
+    }
+    pub fn find(&self, mut id: ClassId) -> ClassId {
+        while self.union_find[id.0 as usize] != id {
+            id = self.union_find[id.0 as usize];
+        }
+        id
+    }
+    /// Whether two e-classes have been shown equivalent
+    pub fn equiv(&self, a: ClassId, b: ClassId) -> bool {
+        self.find(a) == self.find(b)
+    }
+    fn canonicalize(&self, node: &ENode) -> ENode {
+        let mut children = node.children.iter().map(|c| self.find(*c)).collect::<Vec<_>>();
+        if let Head::Assoc(_) = node.head {
+            if self.commutative {
+                children.sort();
+            }
+        }
+        ENode { head: node.head, children }
+    }
+    fn add(&mut self, node: ENode) -> ClassId {
+        let node = self.canonicalize(&node);
+        if let Some(id) = self.memo.get(&node) {
+            return self.find(*id);
+        }
+        let id = ClassId(self.union_find.len() as u32);
+        self.union_find.push(id);
+        self.classes.push(vec![node.clone()]);
+        self.memo.insert(node, id);
+        id
+    }
+    /// Add an expression and all its subexpressions, returning its e-class
+    pub fn add_expr(&mut self, expr: &Expr) -> ClassId {
+        let (head, children) = decompose(expr);
+        let children = children.into_iter().map(|e| self.add_expr(e)).collect();
+        self.add(ENode { head, children })
+    }
+    fn union(&mut self, a: ClassId, b: ClassId) -> bool {
+        let (a, b) = (self.find(a), self.find(b));
+        if a == b {
+            return false;
+        }
+        // keep the larger class as the root, so that fewer nodes move
+        let (root, child) = if self.classes[a.0 as usize].len() >= self.classes[b.0 as usize].len() { (a, b) } else { (b, a) };
+        self.union_find[child.0 as usize] = root;
+        let moved = mem::take(&mut self.classes[child.0 as usize]);
+        self.classes[root.0 as usize].extend(moved);
+        true
+    }
+    /// Restore the invariants after unions: every e-node is canonical, and congruent e-nodes (the
+    /// same operator on the same classes) are in the same class
+    fn rebuild(&mut self) {
+        loop {
+            let mut memo = HashMap::new();
+            let mut congruent = vec![];
+            for i in 0..self.classes.len() {
+                let mut seen = HashSet::new();
+                let nodes = mem::take(&mut self.classes[i]).iter().map(|n| self.canonicalize(n)).filter(|n| seen.insert(n.clone())).collect::<Vec<_>>();
+                let id = ClassId(i as u32);
+                for node in nodes.iter() {
+                    if let Some(other) = memo.get(node) {
+                        congruent.push((*other, id));
+                    } else {
+                        memo.insert(node.clone(), id);
+                    }
+                }
+                self.classes[i] = nodes;
+            }
+            self.memo = memo;
+            if congruent.is_empty() {
+                return;
+            }
+            for (a, b) in congruent {
+                self.union(a, b);
+            }
+        }
+    }
+    /// All ways of extending `subst` so that `pattern` matches an e-node of `class`, where the
+    /// variables of `pattern` in `vars` match any class and all other variables match themselves
+    fn match_pattern<'p>(&self, pattern: &'p Expr, vars: &HashSet<String>, class: ClassId, mut subst: Subst<'p>) -> Vec<Subst<'p>> {
+        if let Expr::Var { name } = pattern {
+            if vars.contains(name) {
+                return match subst.get(name.as_str()) {
+                    Some(bound) if !self.equiv(*bound, class) => vec![],
+                    Some(_) => vec![subst],
+                    None => {
+                        subst.insert(name, class);
+                        vec![subst]
+                    }
+                };
+            }
+        }
+        let (head, children) = decompose(pattern);
+        // operands of commutative operators match in any order, like in `RewriteRule::reduce`
+        let orders = match head {
+            Head::Assoc(op) if unordered_op(op) => children.iter().copied().permutations(children.len()).collect(),
+            _ => vec![children],
+        };
+        let mut ret = vec![];
+        for node in self.classes[self.find(class).0 as usize].iter() {
+            if node.head != head || node.children.len() != orders[0].len() {
+                continue;
+            }
+            for order in orders.iter() {
+                let mut substs = vec![subst.clone()];
+                for (p, c) in order.iter().zip(node.children.iter()) {
+                    substs = substs.into_iter().flat_map(|s| self.match_pattern(p, vars, *c, s)).collect();
+                }
+                ret.extend(substs);
+            }
+        }
+        ret
+    }
+    /// Add `pattern` with its variables replaced according to `subst`
+    fn instantiate(&mut self, pattern: &Expr, subst: &Subst) -> ClassId {
+        if let Expr::Var { name } = pattern {
+            if let Some(id) = subst.get(name.as_str()) {
+                return *id;
+            }
+        }
+        let (head, children) = decompose(pattern);
+        let children = children.into_iter().map(|e| self.instantiate(e, subst)).collect();
+        self.add(ENode { head, children })
+    }
+    /// Apply `rules` (pairs of `(pattern, replacement)`, whose free variables are pattern variables)
+    /// everywhere, until `goal` holds, nothing changes, or the graph has more than `node_budget` e-nodes
+    pub fn saturate<F: Fn(&EGraph) -> bool>(&mut self, rules: &[(Expr, Expr)], node_budget: usize, goal: F) -> Saturation {
+        let rules = rules.iter().map(|(lhs, rhs)| (lhs, rhs, free_vars(lhs))).collect::<Vec<_>>();
+        loop {
+            if goal(self) {
+                return Saturation::Goal;
+            }
+            // find every match before changing anything, so that matching sees a consistent graph
+            let mut matches = vec![];
+            for i in 0..self.classes.len() {
+                if self.classes[i].is_empty() {
+                    continue;
+                }
+                let class = ClassId(i as u32);
+                for (lhs, rhs, vars) in rules.iter() {
+                    for subst in self.match_pattern(lhs, vars, class, HashMap::new()) {
+                        matches.push((class, *rhs, subst));
+                    }
+                }
+            }
+            let before = self.node_count();
+            let mut changed = false;
+            for (class, rhs, subst) in matches {
+                let id = self.instantiate(rhs, &subst);
+                changed |= self.union(class, id);
+                if self.node_count() > node_budget {
+                    self.rebuild();
+                    return if goal(self) { Saturation::Goal } else { Saturation::OutOfBudget };
+                }
+            }
+            changed |= self.node_count() != before;
+            self.rebuild();
+            if !changed {
+                return if goal(self) { Saturation::Goal } else { Saturation::Saturated };
+            }
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    use crate::parser::parse_unwrap as p;
+
+    #[test]
+    fn test_saturate() {
+        let rules = vec![(p("phi & (~phi | psi)"), p("phi & psi")), (p("~~phi"), p("phi"))];
+        let check = |commutative, premise, conclusion| {
+            let mut egraph = EGraph::new(commutative);
+            let (a, b) = (egraph.add_expr(&p(premise)), egraph.add_expr(&p(conclusion)));
+            egraph.saturate(&rules, 1000, |g| g.equiv(a, b))
+        };
+        assert_eq!(check(false, "P(x) & (~P(x) | Q)", "P(x) & Q"), Saturation::Goal);
+        assert_eq!(check(false, "forall x, (A & (~~~A | B))", "forall x, (A & B)"), Saturation::Goal);
+        assert_eq!(check(false, "(~A | B) & A", "A & B"), Saturation::Goal);
+        assert_eq!(check(false, "(~A | B) & A", "B & A"), Saturation::Saturated);
+        assert_eq!(check(true, "(~A | B) & A", "B & A"), Saturation::Goal);
+        assert_eq!(check(true, "A & (~A | B)", "A"), Saturation::Saturated);
+    }
+}
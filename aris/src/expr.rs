@@ -26,6 +26,8 @@ assert_eq!(&handle_user_input("bad(missing, paren"), "unsuccessful parse");
 ```
 */
 
+use crate::symbol::FreshNames;
+
 use std::collections::BTreeSet;
 use std::collections::{HashMap, HashSet};
 use std::fmt;
@@ -263,9 +265,97 @@ pub fn free_vars(expr: &Expr) -> HashSet<String> {
     }
 }
 
+/// Like `free_vars`, but with the names borrowed from `expr` instead of copied
+fn free_names(expr: &Expr) -> HashSet<&str> {
+    fn go<'a>(expr: &'a Expr, bound: &mut Vec<&'a str>, ret: &mut HashSet<&'a str>) {
+        match expr {
+            Expr::Contra | Expr::Taut => {}
+            Expr::Var { name } => {
+                if !bound.contains(&name.as_str()) {
+                    ret.insert(name);
+                }
+            }
+            Expr::Apply { func, args } => {
+                go(func, bound, ret);
+                for arg in args.iter() {
+                    go(arg, bound, ret);
+                }
+            }
+            Expr::Not { operand } => go(operand, bound, ret),
+            Expr::Impl { left, right } => {
+                go(left, bound, ret);
+                go(right, bound, ret);
+            }
+            Expr::Assoc { exprs, .. } => {
+                for e in exprs.iter() {
+                    go(e, bound, ret);
+                }
+            }
+            Expr::Quant { name, body, .. } => {
+                bound.push(name);
+                go(body, bound, ret);
+                bound.pop();
+            }
+        }
+    }
+    let mut ret = HashSet::new();
+    go(expr, &mut vec![], &mut ret);
+    ret
+}
+
+/// Whether `name` occurs free in `expr`. This stops at the first occurrence and doesn't allocate, so
+/// prefer it over `free_vars` when only one name is of interest.
+pub fn occurs_free(expr: &Expr, name: &str) -> bool {
+    match expr {
+        Expr::Contra | Expr::Taut => false,
+        Expr::Var { name: n } => n == name,
+        Expr::Apply { func, args } => occurs_free(func, name) || args.iter().any(|arg| occurs_free(arg, name)),
+        Expr::Not { operand } => occurs_free(operand, name),
+        Expr::Impl { left, right } => occurs_free(left, name) || occurs_free(right, name),
+        Expr::Assoc { exprs, .. } => exprs.iter().any(|e| occurs_free(e, name)),
+        Expr::Quant { name: n, body, .. } => n != name && occurs_free(body, name),
+    }
+}
+
+/// Whether two expressions are equal up to renaming bound variables.
+///
+/// This is equality of the locally nameless forms from `Expr::replacing_bound_vars`, computed in one
+/// walk over both expressions without building either form: bound variables are compared by the depth
+/// of the quantifier binding them, and free variables by name.
+pub fn alpha_equal(a: &Expr, b: &Expr) -> bool {
+    /// `scopes` has the depths of the enclosing quantifiers binding each name, innermost last, for each side
+    fn go<'a>(a: &'a Expr, b: &'a Expr, depth: usize, scopes: &mut [HashMap<&'a str, Vec<usize>>; 2]) -> bool {
+        match (a, b) {
+            (Expr::Contra, Expr::Contra) | (Expr::Taut, Expr::Taut) => true,
+            (Expr::Var { name: x }, Expr::Var { name: y }) => match (scopes[0].get(x.as_str()).and_then(|s| s.last()), scopes[1].get(y.as_str()).and_then(|s| s.last())) {
+                (None, None) => x == y,
+                (i, j) => i == j,
+            },
+            (Expr::Apply { func: f, args: xs }, Expr::Apply { func: g, args: ys }) => xs.len() == ys.len() && go(f, g, depth, scopes) && xs.iter().zip(ys.iter()).all(|(x, y)| go(x, y, depth, scopes)),
+            (Expr::Not { operand: x }, Expr::Not { operand: y }) => go(x, y, depth, scopes),
+            (Expr::Impl { left: xl, right: xr }, Expr::Impl { left: yl, right: yr }) => go(xl, yl, depth, scopes) && go(xr, yr, depth, scopes),
+            (Expr::Assoc { op: xo, exprs: xs }, Expr::Assoc { op: yo, exprs: ys }) => xo == yo && xs.len() == ys.len() && xs.iter().zip(ys.iter()).all(|(x, y)| go(x, y, depth, scopes)),
+            (Expr::Quant { kind: xk, name: x, body: xb }, Expr::Quant { kind: yk, name: y, body: yb }) if xk == yk => {
+                scopes[0].entry(x.as_str()).or_default().push(depth);
+                scopes[1].entry(y.as_str()).or_default().push(depth);
+                let ret = go(xb, yb, depth + 1, scopes);
+                for (side, name) in [x, y].iter().enumerate() {
+                    if let Some(s) = scopes[side].get_mut(name.as_str()) {
+                        s.pop();
+                    }
+                }
+                ret
+            }
+            _ => false,
+        }
+    }
+    go(a, b, 0, &mut [HashMap::new(), HashMap::new()])
+}
+
 /// Generate a variable name that doesn't exist in a set.
 ///
-/// If `prefix` is not in `avoid`, `prefix` will be returned.
+/// If `prefix` is not in `avoid`, `prefix` will be returned. When generating several names against
+/// the same set, `symbol::FreshNames` avoids re-probing the same candidates each time.
 ///
 /// ## Parameters
 ///   * `prefix` - prefix of variable name to generate
@@ -296,38 +386,60 @@ pub fn gen_var(prefix: &str, avoid: &HashSet<String>) -> String {
 ///   * `var_to_replace` - variable name to be replaced
 ///   * `replacement` - expression that replaces the variable
 pub fn subst(expr: Expr, var_to_replace: &str, replacement: Expr) -> Expr {
+    // the free variables of the replacement are computed once, rather than at every quantifier
+    let mut fresh = FreshNames::default();
+    for name in free_names(&replacement) {
+        fresh.avoid(name);
+    }
+    subst_avoiding(expr, var_to_replace, &replacement, &mut fresh)
+}
+
+/// Helper for `subst`, where `fresh` avoids the free variables of `replacement`
+fn subst_avoiding(expr: Expr, var_to_replace: &str, replacement: &Expr, fresh: &mut FreshNames) -> Expr {
     match expr {
         Expr::Contra => Expr::Contra,
         Expr::Taut => Expr::Taut,
         Expr::Var { name } => {
             if name == var_to_replace {
-                replacement
+                replacement.clone()
             } else {
                 Expr::Var { name }
             }
         }
-        Expr::Apply { func, args } => Expr::Apply { func: Box::new(subst(*func, var_to_replace, replacement.clone())), args: args.into_iter().map(|expr| subst(expr, var_to_replace, replacement.clone())).collect() },
-        Expr::Not { operand } => Expr::Not { operand: Box::new(subst(*operand, var_to_replace, replacement)) },
-        Expr::Impl { left, right } => Expr::Impl { left: Box::new(subst(*left, var_to_replace, replacement.clone())), right: Box::new(subst(*right, var_to_replace, replacement)) },
-        Expr::Assoc { op, exprs } => Expr::Assoc { op, exprs: exprs.into_iter().map(|expr| subst(expr, var_to_replace, replacement.clone())).collect() },
+        Expr::Apply { func, args } => Expr::Apply { func: Box::new(subst_avoiding(*func, var_to_replace, replacement, fresh)), args: args.into_iter().map(|expr| subst_avoiding(expr, var_to_replace, replacement, fresh)).collect() },
+        Expr::Not { operand } => Expr::Not { operand: Box::new(subst_avoiding(*operand, var_to_replace, replacement, fresh)) },
+        Expr::Impl { left, right } => Expr::Impl { left: Box::new(subst_avoiding(*left, var_to_replace, replacement, fresh)), right: Box::new(subst_avoiding(*right, var_to_replace, replacement, fresh)) },
+        Expr::Assoc { op, exprs } => Expr::Assoc { op, exprs: exprs.into_iter().map(|expr| subst_avoiding(expr, var_to_replace, replacement, fresh)).collect() },
         Expr::Quant { kind, name, body } => {
             if name == var_to_replace {
                 // Variable is bound here, so can stop replacement
                 Expr::Quant { kind, name, body }
+            } else if !fresh.is_used(&name) {
+                // The quantified variable doesn't collide with free variables in the replacement
+                let body = Box::new(subst_avoiding(*body, var_to_replace, replacement, fresh));
+                Expr::Quant { kind, name, body }
             } else {
-                // Capture-avoidance behavior, rename the quantified variable if
+                // Capture-avoidance behavior, rename the quantified variable since
                 // it collides with free variables in the replacement.
 
                 let old_name = name;
 
-                // New quantifier variable name
-                let name = gen_var(&old_name, &free_vars(&replacement));
+                // New quantifier variable name, which also mustn't capture anything free in the body
+                let name = {
+                    let body_free = free_names(&body);
+                    loop {
+                        let name = fresh.fresh(&old_name);
+                        if !body_free.contains(name.as_str()) {
+                            break name;
+                        }
+                    }
+                };
 
                 // Change quantified variable
                 let body = subst(*body, &old_name, Expr::var(&name));
 
                 // Now it's safe to continue substitution
-                let body = subst(body, var_to_replace, replacement);
+                let body = subst_avoiding(body, var_to_replace, replacement, fresh);
 
                 let body = Box::new(body);
                 Expr::Quant { kind, name, body }
@@ -336,6 +448,76 @@ pub fn subst(expr: Expr, var_to_replace: &str, replacement: Expr) -> Expr {
     }
 }
 
+/// Replace several free variables with expressions at once.
+///
+/// The substitution is simultaneous: the replacements aren't substituted into each other, unlike when
+/// folding `subst` over the pairs. Like `subst`, it's capture-avoiding, but the free variables of the
+/// replacements and the names to avoid when renaming are collected once up front, and renamed binders
+/// are renamed during the same walk, so `expr` is traversed once however many variables are replaced.
+pub fn subst_all(expr: Expr, substitution: &HashMap<&str, Expr>) -> Expr {
+    fn avoid_names(expr: &Expr, fresh: &mut FreshNames) {
+        match expr {
+            Expr::Contra | Expr::Taut => {}
+            Expr::Var { name } => fresh.avoid(name),
+            Expr::Apply { func, args } => {
+                avoid_names(func, fresh);
+                for arg in args.iter() {
+                    avoid_names(arg, fresh);
+                }
+            }
+            Expr::Not { operand } => avoid_names(operand, fresh),
+            Expr::Impl { left, right } => {
+                avoid_names(left, fresh);
+                avoid_names(right, fresh);
+            }
+            Expr::Assoc { exprs, .. } => {
+                for e in exprs.iter() {
+                    avoid_names(e, fresh);
+                }
+            }
+            Expr::Quant { name, body, .. } => {
+                fresh.avoid(name);
+                avoid_names(body, fresh);
+            }
+        }
+    }
+    /// `scopes` has each enclosing binder and its new name if it was renamed, innermost last; bound variables aren't substituted
+    fn go(expr: Expr, substitution: &HashMap<&str, Expr>, capturing: &HashSet<&str>, scopes: &mut Vec<(String, Option<String>)>, fresh: &mut FreshNames) -> Expr {
+        match expr {
+            Expr::Contra => Expr::Contra,
+            Expr::Taut => Expr::Taut,
+            Expr::Var { name } => match scopes.iter().rev().find(|(old, _)| *old == name) {
+                Some((_, Some(new))) => Expr::var(new),
+                Some((_, None)) => Expr::Var { name },
+                None => substitution.get(name.as_str()).cloned().unwrap_or(Expr::Var { name }),
+            },
+            Expr::Apply { func, args } => Expr::Apply { func: Box::new(go(*func, substitution, capturing, scopes, fresh)), args: args.into_iter().map(|arg| go(arg, substitution, capturing, scopes, fresh)).collect() },
+            Expr::Not { operand } => Expr::Not { operand: Box::new(go(*operand, substitution, capturing, scopes, fresh)) },
+            Expr::Impl { left, right } => Expr::Impl { left: Box::new(go(*left, substitution, capturing, scopes, fresh)), right: Box::new(go(*right, substitution, capturing, scopes, fresh)) },
+            Expr::Assoc { op, exprs } => Expr::Assoc { op, exprs: exprs.into_iter().map(|e| go(e, substitution, capturing, scopes, fresh)).collect() },
+            Expr::Quant { kind, name, body } => {
+                // rename the quantified variable if it collides with free variables in a replacement
+                let new = if capturing.contains(name.as_str()) { Some(fresh.fresh(&name)) } else { None };
+                scopes.push((name, new));
+                let body = Box::new(go(*body, substitution, capturing, scopes, fresh));
+                let (name, new) = scopes.pop().expect("subst_all: unbalanced scopes");
+                Expr::Quant { kind, name: new.unwrap_or(name), body }
+            }
+        }
+    }
+    if substitution.is_empty() {
+        return expr;
+    }
+    let capturing = substitution.values().flat_map(free_names).collect::<HashSet<_>>();
+    // new binder names avoid every name in `expr` as well, so that they can't capture anything in it
+    let mut fresh = FreshNames::default();
+    for name in capturing.iter() {
+        fresh.avoid(name);
+    }
+    avoid_names(&expr, &mut fresh);
+    go(expr, substitution, &capturing, &mut vec![], &mut fresh)
+}
+
 /// Constraints that should hold for a substitution, maintained in a set during unification
 #[derive(Clone, Debug, PartialEq, Eq, Hash)]
 pub enum Constraint {
@@ -343,67 +525,234 @@ pub enum Constraint {
     Equal(Expr, Expr),
 }
 
-/// A substitution of variable names to `Expr`s, meant to be passed to `subst`
+/// A substitution of variable names to `Expr`s, meant to be passed to `subst_all`
 #[derive(Clone, Debug, PartialEq, Eq, Hash)]
 pub struct Substitution(pub Vec<(String, Expr)>);
 
 impl Substitution {
-    /// Apply all the pairs in a substitution to an expression
+    /// Apply all the pairs in a substitution to an expression at once. If a variable has several
+    /// pairs, the first one is used. The substitutions from `unify` don't mention their own
+    /// variables on the right, so for those this is the same as applying the pairs one at a time.
     pub fn apply(&self, expr: Expr) -> Expr {
-        self.0.iter().fold(expr, |z, (x, y)| subst(z, x, y.clone()))
+        let mut substitution = HashMap::new();
+        for (x, y) in self.0.iter() {
+            substitution.entry(x.as_str()).or_insert_with(|| y.clone());
+        }
+        subst_all(expr, &substitution)
     }
 }
 
 /// Unifies a set of equality constraints on expressions, giving a list of substitutions that make constrained expressions equal.
 /// a == b -> unify(HashSet::from_iter(vec![Equal(a, b)])) == Some(vec![])
-pub fn unify(mut c: HashSet<Constraint>) -> Option<Substitution> {
-    // inspired by TAPL 22.4
-    //println!("\t{:?}", c);
-    let mut c_ = c.clone();
-    let Constraint::Equal(left, right) = if let Some(x) = c_.drain().next() {
-        c.remove(&x);
-        x
-    } else {
-        return Some(Substitution(vec![]));
-    };
-    let subst_set = |x, e1: Expr, set: HashSet<_>| set.into_iter().map(|Constraint::Equal(e2, e3)| Constraint::Equal(subst(e2, x, e1.clone()), subst(e3, x, e1.clone()))).collect::<_>();
-    let (fvs, fvt) = (free_vars(&left), free_vars(&right));
-    match (left, right) {
-        (left, right) if left == right => unify(c),
-        (Expr::Var { name: sname }, right) if !fvt.contains(&sname) => unify(subst_set(&sname, right.clone(), c)).map(|mut x| {
-            x.0.push((sname.clone(), right.clone()));
-            x
-        }),
-        (left, Expr::Var { name: tname }) if !fvs.contains(&tname) => unify(subst_set(&tname, left.clone(), c)).map(|mut x| {
-            x.0.push((tname.clone(), left.clone()));
-            x
-        }),
-        (Expr::Not { operand: s }, Expr::Not { operand: t }) => {
-            c.insert(Constraint::Equal(*s, *t));
-            unify(c)
+///
+/// Variables that are unified with each other are merged in a union-find structure, and a class that
+/// is unified with anything else is bound to that term as is, so the bindings form a triangular
+/// substitution that may mention other bound variables. Nothing is substituted until the end, where
+/// the bindings are resolved into a substitution whose pairs can be applied in any order.
+pub fn unify(c: HashSet<Constraint>) -> Option<Substitution> {
+    Unifier::default().run(c)
+}
+
+#[derive(Default)]
+struct Unifier {
+    /// A number for each variable name seen so far, indexing `names`. These are local to the unifier
+    /// rather than `Symbol`s, so that the constants it makes up don't outlive it in the symbol table.
+    ids: HashMap<String, usize>,
+    names: Vec<String>,
+    /// Union-find links from a variable towards the representative of its class
+    parent: HashMap<usize, usize>,
+    /// The term each class is bound to, by representative; never a variable
+    terms: HashMap<usize, Expr>,
+    /// Variables that were linked or bound, in order
+    bound: Vec<usize>,
+    /// Constants substituted for the binders of quantifiers, which must neither be bound nor escape
+    constants: Vec<usize>,
+}
+
+impl Unifier {
+    /// The number of the variable `name`, numbering it if it's new
+    fn id(&mut self, name: &str) -> usize {
+        if let Some(id) = self.ids.get(name) {
+            return *id;
         }
-        (Expr::Impl { left: sl, right: sr }, Expr::Impl { left: tl, right: tr }) => {
-            c.insert(Constraint::Equal(*sl, *tl));
-            c.insert(Constraint::Equal(*sr, *tr));
-            unify(c)
+        let id = self.names.len();
+        self.names.push(name.to_owned());
+        self.ids.insert(name.to_owned(), id);
+        id
+    }
+    fn root(&self, mut var: usize) -> usize {
+        while let Some(next) = self.parent.get(&var) {
+            var = *next;
+        }
+        var
+    }
+    /// Like `root`, but also points every variable on the way directly at the root
+    fn find(&mut self, var: usize) -> usize {
+        let root = self.root(var);
+        let mut cur = var;
+        while cur != root {
+            let next = self.parent[&cur];
+            self.parent.insert(cur, root);
+            cur = next;
+        }
+        root
+    }
+    fn is_bound(&self, var: usize) -> bool {
+        self.parent.contains_key(&var) || self.terms.contains_key(&var)
+    }
+    /// If `expr` is a variable, the term its class is bound to, or its representative if unbound
+    fn resolve(&mut self, expr: Expr) -> Expr {
+        if let Expr::Var { name } = &expr {
+            let var = self.id(name);
+            let root = self.find(var);
+            if let Some(term) = self.terms.get(&root) {
+                return term.clone();
+            }
+            if root != var {
+                return Expr::var(&self.names[root]);
+            }
         }
-        (Expr::Apply { func: sf, args: sa }, Expr::Apply { func: tf, args: ta }) if sa.len() == ta.len() => {
-            c.insert(Constraint::Equal(*sf, *tf));
-            c.extend(sa.into_iter().zip(ta.into_iter()).map(|(x, y)| Constraint::Equal(x, y)));
-            unify(c)
+        expr
+    }
+    /// Whether the class with representative `var` occurs free in `expr`, looking through bindings
+    fn occurs(&self, var: usize, expr: &Expr) -> bool {
+        let mut terms = vec![expr];
+        let mut seen = HashSet::new();
+        while let Some(term) = terms.pop() {
+            // the terms reached through bindings are walked separately, since the binders of this one don't scope over them
+            let mut bound = vec![];
+            // `None` marks the end of a binder's scope
+            let mut stack = vec![Some(term)];
+            while let Some(item) = stack.pop() {
+                let e = match item {
+                    Some(e) => e,
+                    None => {
+                        bound.pop();
+                        continue;
+                    }
+                };
+                match e {
+                    Expr::Contra | Expr::Taut => {}
+                    Expr::Var { name } => {
+                        if bound.contains(&name.as_str()) {
+                            continue;
+                        }
+                        // a variable without a number was never linked or bound, so it's its own class, which isn't `var`'s
+                        let root = match self.ids.get(name) {
+                            Some(id) => self.root(*id),
+                            None => continue,
+                        };
+                        if root == var {
+                            return true;
+                        }
+                        if seen.insert(root) {
+                            terms.extend(self.terms.get(&root));
+                        }
+                    }
+                    Expr::Apply { func, args } => {
+                        stack.push(Some(&**func));
+                        stack.extend(args.iter().map(Some));
+                    }
+                    Expr::Not { operand } => stack.push(Some(&**operand)),
+                    Expr::Impl { left, right } => {
+                        stack.push(Some(&**left));
+                        stack.push(Some(&**right));
+                    }
+                    Expr::Assoc { exprs, .. } => stack.extend(exprs.iter().map(Some)),
+                    Expr::Quant { name, body, .. } => {
+                        bound.push(name.as_str());
+                        stack.push(None);
+                        stack.push(Some(&**body));
+                    }
+                }
+            }
+        }
+        false
+    }
+    /// Bind the unbound class with representative `var` to `term`, if that wouldn't make a cyclic term
+    fn bind(&mut self, var: usize, term: Expr) -> Option<()> {
+        if self.occurs(var, &term) {
+            return None;
+        }
+        self.terms.insert(var, term);
+        self.bound.push(var);
+        Some(())
+    }
+    fn run(mut self, c: HashSet<Constraint>) -> Option<Substitution> {
+        // inspired by TAPL 22.4, with the constraints kept on a stack instead of recursing on each one
+        let mut fresh = FreshNames::default();
+        for Constraint::Equal(left, right) in c.iter() {
+            for name in free_names(left).into_iter().chain(free_names(right)) {
+                fresh.avoid(name);
+            }
+        }
+        let mut work = c.into_iter().map(|Constraint::Equal(left, right)| (left, right)).collect::<Vec<_>>();
+        while let Some((left, right)) = work.pop() {
+            let (left, right) = (self.resolve(left), self.resolve(right));
+            match (left, right) {
+                (Expr::Var { name: sname }, Expr::Var { name: tname }) => {
+                    // both are representatives of unbound classes, so linking them can't make a cycle
+                    if sname != tname {
+                        let (s, t) = (self.id(&sname), self.id(&tname));
+                        self.parent.insert(s, t);
+                        self.bound.push(s);
+                    }
+                }
+                (Expr::Var { name }, right) => {
+                    let var = self.id(&name);
+                    self.bind(var, right)?
+                }
+                (left, Expr::Var { name }) => {
+                    let var = self.id(&name);
+                    self.bind(var, left)?
+                }
+                (Expr::Contra, Expr::Contra) | (Expr::Taut, Expr::Taut) => {}
+                (Expr::Not { operand: s }, Expr::Not { operand: t }) => work.push((*s, *t)),
+                (Expr::Impl { left: sl, right: sr }, Expr::Impl { left: tl, right: tr }) => {
+                    work.push((*sl, *tl));
+                    work.push((*sr, *tr));
+                }
+                (Expr::Apply { func: sf, args: sa }, Expr::Apply { func: tf, args: ta }) if sa.len() == ta.len() => {
+                    work.push((*sf, *tf));
+                    work.extend(sa.into_iter().zip(ta.into_iter()));
+                }
+                (Expr::Assoc { op: so, exprs: se }, Expr::Assoc { op: to, exprs: te }) if so == to && se.len() == te.len() => work.extend(se.into_iter().zip(te.into_iter())),
+                (Expr::Quant { kind: sk, name: sn, body: sb }, Expr::Quant { kind: tk, name: tn, body: tb }) if sk == tk => {
+                    if sn == tn && sb == tb {
+                        continue;
+                    }
+                    // require that the bodies of the quantifiers are alpha-equal by substituting a fresh constant
+                    let uv = fresh.fresh("__unification_var");
+                    let constant = self.id(&uv);
+                    self.constants.push(constant);
+                    work.push((subst(*sb, &sn, Expr::var(&uv)), subst(*tb, &tn, Expr::var(&uv))));
+                }
+                _ => return None,
+            }
         }
-        (Expr::Assoc { op: so, exprs: se }, Expr::Assoc { op: to, exprs: te }) if so == to && se.len() == te.len() => {
-            c.extend(se.iter().zip(te.iter()).map(|(x, y)| Constraint::Equal(x.clone(), y.clone())));
-            unify(c)
+        let mut memo = HashMap::new();
+        let ret = self.bound.iter().rev().map(|var| (self.names[*var].clone(), self.value(*var, &mut memo))).collect::<Vec<_>>();
+        // if a constant was bound or escapes, then a free variable in one formula unified with a captured variable in the other, so the values don't unify
+        if self.constants.iter().any(|uv| self.is_bound(*uv) || ret.iter().any(|(_, y)| occurs_free(y, &self.names[*uv]))) {
+            return None;
         }
-        (Expr::Quant { kind: sk, name: sn, body: sb }, Expr::Quant { kind: tk, name: tn, body: tb }) if sk == tk => {
-            let uv = gen_var("__unification_var", &fvs.union(&fvt).cloned().collect());
-            // require that the bodies of the quantifiers are alpha-equal by substituting a fresh constant
-            c.insert(Constraint::Equal(subst(*sb, &sn, Expr::var(&uv)), subst(*tb, &tn, Expr::var(&uv))));
-            // if the constant escapes, then a free variable in one formula unified with a captured variable in the other, so the values don't unify
-            unify(c).and_then(|sub| if sub.0.iter().any(|(x, y)| x == &uv || free_vars(y).contains(&uv)) { None } else { Some(sub) })
+        Some(Substitution(ret))
+    }
+    /// The fully resolved value of a variable, which mentions no bound variables
+    fn value(&self, var: usize, memo: &mut HashMap<usize, Expr>) -> Expr {
+        let root = self.root(var);
+        if let Some(value) = memo.get(&root) {
+            return value.clone();
         }
-        _ => None,
+        let value = match self.terms.get(&root) {
+            None => Expr::var(&self.names[root]),
+            Some(term) => {
+                let substitution = free_names(term).into_iter().filter_map(|free| self.ids.get(free).copied().filter(|id| self.is_bound(*id)).map(|id| (free, self.value(id, memo)))).collect();
+                subst_all(term.clone(), &substitution)
+            }
+        };
+        memo.insert(root, value.clone());
+        value
     }
 }
 
@@ -552,7 +901,12 @@ impl Expr {
     /// Sort all commutative associative operators to normalize expressions in the case of arbitrary ordering
     /// Eg (B & A) ==> (A & B)
     pub fn sort_commutative_ops(self) -> Expr {
-        self.transform(&|e| match e {
+        self.normalize(&Self::sort_commutative_node)
+    }
+
+    /// Rewrite rule for `sort_commutative_ops()`
+    fn sort_commutative_node(e: Expr, _node: &dyn Fn(Expr) -> Expr) -> (Expr, bool) {
+        match e {
             Expr::Assoc { op, mut exprs } => {
                 let is_sorted = exprs.windows(2).all(|xy| xy[0] <= xy[1]);
                 if !is_sorted {
@@ -563,13 +917,18 @@ impl Expr {
                 }
             }
             _ => (e, false),
-        })
+        }
     }
 
     /// Combine associative operators such that nesting is flattened
     /// Eg (A & (B & C)) ==> (A & B & C)
     pub fn combine_associative_ops(self) -> Expr {
-        self.transform(&|e| match e {
+        self.normalize(&Self::combine_associative_node)
+    }
+
+    /// Rewrite rule for `combine_associative_ops()`
+    fn combine_associative_node(e: Expr, _node: &dyn Fn(Expr) -> Expr) -> (Expr, bool) {
+        match e {
             Expr::Assoc { op: op_1, exprs: exprs_1 } => {
                 let mut result = vec![];
                 let mut combined = false;
@@ -588,7 +947,7 @@ impl Expr {
                 (Expr::Assoc { op: op_1, exprs: result }, combined)
             }
             _ => (e, false),
-        })
+        }
     }
 
     /// Helper function for `tranform()`; use the `trans` function to transform
@@ -670,6 +1029,74 @@ impl Expr {
         result
     }
 
+    /// Rewrite an expression to a normal form of `trans_fn`, bottom-up and in place.
+    ///
+    /// `trans_fn` is called on nodes whose children are already normal, and returns
+    /// `(original expr, false)` if it doesn't apply, or `(rewritten expr, true)` if it does. Besides
+    /// the node, it's given a function to pass each node it builds through, once that node's
+    /// children are normal, so that the result is built out of normal subtrees: the ones it took
+    /// from its input, and the new ones it passed through that function. Only the root of the
+    /// result is revisited, and subtrees that nothing rewrites are never visited again, rebuilt, or
+    /// reallocated.
+    ///
+    /// Unlike `transform()`, which reruns over the whole tree until nothing changes, this only gives
+    /// the same result when the normal form doesn't depend on the order of rewrites. This will also
+    /// loop infinitely if your transformation creates patterns that it matches.
+    pub fn normalize<Trans>(mut self, trans_fn: &Trans) -> Expr
+    where
+        Trans: Fn(Expr, &dyn Fn(Expr) -> Expr) -> (Expr, bool),
+    {
+        Self::normalize_in_place(&mut self, trans_fn);
+        self
+    }
+
+    /// Helper function for `normalize()`
+    fn normalize_in_place<Trans>(expr: &mut Expr, trans: &Trans)
+    where
+        Trans: Fn(Expr, &dyn Fn(Expr) -> Expr) -> (Expr, bool),
+    {
+        match expr {
+            Expr::Contra | Expr::Taut | Expr::Var { .. } => {}
+            Expr::Apply { func, args } => {
+                Self::normalize_in_place(func, trans);
+                for arg in args.iter_mut() {
+                    Self::normalize_in_place(arg, trans);
+                }
+            }
+            Expr::Not { operand } => Self::normalize_in_place(operand, trans),
+            Expr::Impl { left, right } => {
+                Self::normalize_in_place(left, trans);
+                Self::normalize_in_place(right, trans);
+            }
+            Expr::Assoc { exprs, .. } => {
+                for e in exprs.iter_mut() {
+                    Self::normalize_in_place(e, trans);
+                }
+            }
+            Expr::Quant { body, .. } => Self::normalize_in_place(body, trans),
+        }
+        Self::normalize_root(expr, trans);
+    }
+
+    /// Helper function for `normalize()`; rewrite `expr`, whose children are already normal, until
+    /// `trans` stops applying at its root
+    fn normalize_root<Trans>(expr: &mut Expr, trans: &Trans)
+    where
+        Trans: Fn(Expr, &dyn Fn(Expr) -> Expr) -> (Expr, bool),
+    {
+        let node = |mut e: Expr| {
+            Self::normalize_root(&mut e, trans);
+            e
+        };
+        loop {
+            let (result, changed) = trans(mem::replace(expr, Expr::Contra), &node);
+            *expr = result;
+            if !changed {
+                return;
+            }
+        }
+    }
+
     /// Like `transform_set()`, but the result is converted to a vector. This is
     /// used because `itertools::Itertools::cartesian_product` requires `Clone`,
     /// which `std::collections::hash_set::IntoIter` doesn't implement.
@@ -765,18 +1192,22 @@ impl Expr {
     /// This should leave us with an expression in "DeMorgans'd normal form"
     /// With no ~(A ^ B) / ~(A v B) expressions
     pub fn normalize_demorgans(self) -> Expr {
-        self.transform(&|expr| {
-            let demorgans = |op, exprs: Vec<Expr>| Expr::Assoc { op, exprs: exprs.into_iter().map(|expr| Expr::Not { operand: Box::new(expr) }).collect() };
+        self.normalize(&Self::demorgans_node)
+    }
 
-            match expr {
-                Expr::Not { operand } => match *operand {
-                    Expr::Assoc { op: Op::And, exprs } => (demorgans(Op::Or, exprs), true),
-                    Expr::Assoc { op: Op::Or, exprs } => (demorgans(Op::And, exprs), true),
-                    _ => (Expr::not(*operand), false),
-                },
-                _ => (expr, false),
-            }
-        })
+    /// Rewrite rule for `normalize_demorgans()`
+    fn demorgans_node(expr: Expr, node: &dyn Fn(Expr) -> Expr) -> (Expr, bool) {
+        // the negations are new nodes, and may be rewritten themselves
+        let demorgans = |op, exprs: Vec<Expr>| Expr::Assoc { op, exprs: exprs.into_iter().map(|expr| node(Expr::Not { operand: Box::new(expr) })).collect() };
+
+        match expr {
+            Expr::Not { operand } => match *operand {
+                Expr::Assoc { op: Op::And, exprs } => (demorgans(Op::Or, exprs), true),
+                Expr::Assoc { op: Op::Or, exprs } => (demorgans(Op::And, exprs), true),
+                _ => (Expr::not(*operand), false),
+            },
+            _ => (expr, false),
+        }
     }
 
     /// Reduce an expression over idempotence, that is:
@@ -784,30 +1215,33 @@ impl Expr {
     /// A | A -> A
     /// In a manner equivalent to normalize_demorgans
     pub fn normalize_idempotence(self) -> Expr {
-        self.transform(&|expr| {
-            match expr {
-                Expr::Assoc { op: op @ Op::And, exprs } | Expr::Assoc { op: op @ Op::Or, exprs } => {
-                    let mut unifies = true;
-                    // (0, 1), (1, 2), ... (n - 2, n - 1)
-                    for pair in exprs.windows(2) {
-                        // Just doing a basic AST equality. Could replace this with unify if we want
-                        // to be stronger
-                        if pair[0] != pair[1] {
-                            unifies = false;
-                            break;
-                        }
+        self.normalize(&Self::idempotence_node)
+    }
+
+    /// Rewrite rule for `normalize_idempotence()`
+    fn idempotence_node(expr: Expr, _node: &dyn Fn(Expr) -> Expr) -> (Expr, bool) {
+        match expr {
+            Expr::Assoc { op: op @ Op::And, exprs } | Expr::Assoc { op: op @ Op::Or, exprs } => {
+                let mut unifies = true;
+                // (0, 1), (1, 2), ... (n - 2, n - 1)
+                for pair in exprs.windows(2) {
+                    // Just doing a basic AST equality. Could replace this with unify if we want
+                    // to be stronger
+                    if pair[0] != pair[1] {
+                        unifies = false;
+                        break;
                     }
+                }
 
-                    if unifies {
-                        // Just use the first one
-                        (exprs.into_iter().next().unwrap(), true)
-                    } else {
-                        (Expr::Assoc { op, exprs }, false)
-                    }
+                if unifies {
+                    // Just use the first one
+                    (exprs.into_iter().next().unwrap(), true)
+                } else {
+                    (Expr::Assoc { op, exprs }, false)
                 }
-                _ => (expr, false),
             }
-        })
+            _ => (expr, false),
+        }
     }
 
     /// View the top-level disjuncts of an Expr, counting contradiction as an empty disjunction. Useful for SAT interopration.
@@ -860,73 +1294,104 @@ impl Expr {
         })
     }
     /// Remove any quantifiers whose names are unused in their bodies
-    pub fn normalize_null_quantifiers(self) -> Expr {
-        self.transform(&|expr| {
+    pub fn normalize_null_quantifiers(mut self) -> Expr {
+        // Removing a quantifier that binds nothing doesn't change the free variables of anything
+        // around it, so a single bottom-up pass in place suffices
+        fn aux(expr: &mut Expr) {
             match expr {
-                Expr::Quant { kind, name, body } => {
-                    if free_vars(&body).contains(&name) {
-                        (Expr::Quant { kind, name, body }, false)
-                    } else {
-                        // if name is not free in body, then the quantifier isn't binding anything and can be removed
-                        (*body, true)
+                Expr::Contra | Expr::Taut | Expr::Var { .. } => {}
+                Expr::Apply { func, args } => {
+                    aux(func);
+                    for arg in args.iter_mut() {
+                        aux(arg);
+                    }
+                }
+                Expr::Not { operand } => aux(operand),
+                Expr::Impl { left, right } => {
+                    aux(left);
+                    aux(right);
+                }
+                Expr::Assoc { exprs, .. } => {
+                    for e in exprs.iter_mut() {
+                        aux(e);
+                    }
+                }
+                Expr::Quant { name, body, .. } => {
+                    aux(body);
+                    // if name is not free in body, then the quantifier isn't binding anything and can be removed
+                    if !occurs_free(body, name) {
+                        let body = mem::replace(&mut **body, Expr::Contra);
+                        *expr = body;
                     }
                 }
-                _ => (expr, false),
             }
-        })
+        }
+        aux(&mut self);
+        self
     }
-    /// Replace all bound variables with DeBruijn indices, for testing alpha-equivalence
+    /// Replace all bound variables with DeBruijn levels, for testing alpha-equivalence
     /// if `a.replacing_bound_vars() == b.replacing_bound_vars()`, then `a` is alpha-equivalent to `b`
+    ///
+    /// This is a locally nameless form: each quantifier and the variables it binds are named by the
+    /// quantifier's depth, and free variables keep their names. The depth names skip any that are free
+    /// in `self`, so that bound and free variables can't be confused. `alpha_equal` compares two
+    /// expressions this way without building the form.
     pub fn replacing_bound_vars(self) -> Expr {
-        // replaces the letter names with numbers
-        fn aux(expr: Expr, mut gamma: Vec<String>) -> Expr {
-            match expr {
-                Expr::Var { name } => {
-                    // look up the name in gamma, get the index
-                    let i = gamma.into_iter().enumerate().find(|(_, n)| n == &name).unwrap().0;
-                    Expr::Var { name: format!("{}", i) }
+        /// Names for depths, generated as they're needed
+        struct Levels {
+            free: HashSet<String>,
+            names: Vec<String>,
+            next: usize,
+        }
+        impl Levels {
+            fn name(&mut self, depth: usize) -> String {
+                while self.names.len() <= depth {
+                    let name = self.next.to_string();
+                    self.next += 1;
+                    if !self.free.contains(&name) {
+                        self.names.push(name);
+                    }
                 }
-                // push the name onto gamma from the actual quantifier,
-                // Example: for forall x, P(x)
-                // push x onto gamma
-                // save the length of gamma before recursing, to use as the new name
+                self.names[depth].clone()
+            }
+        }
+        // `scopes` has the depths of the enclosing quantifiers binding each name, innermost last
+        fn aux(expr: Expr, depth: usize, scopes: &mut HashMap<String, Vec<usize>>, levels: &mut Levels) -> Expr {
+            match expr {
+                Expr::Var { name } => match scopes.get(&name).and_then(|s| s.last()) {
+                    Some(level) => Expr::Var { name: levels.name(*level) },
+                    None => Expr::Var { name },
+                },
                 Expr::Quant { kind, name, body } => {
-                    let current_level = format!("{}", gamma.len());
-                    gamma.push(name);
-                    let new_body = aux(*body, gamma);
-                    Expr::Quant { kind, name: current_level, body: Box::new(new_body) }
+                    scopes.entry(name.clone()).or_default().push(depth);
+                    let body = Box::new(aux(*body, depth + 1, scopes, levels));
+                    if let Some(s) = scopes.get_mut(&name) {
+                        s.pop();
+                    }
+                    Expr::Quant { kind, name: levels.name(depth), body }
                 }
-                // All the remainder cases
                 Expr::Contra => Expr::Contra,
                 Expr::Taut => Expr::Taut,
                 Expr::Apply { func, args } => {
-                    let func = aux(*func, gamma.clone());
-                    let args = args.into_iter().map(|e| aux(e, gamma.clone())).collect();
-                    Expr::Apply { func: Box::new(func), args }
+                    let func = Box::new(aux(*func, depth, scopes, levels));
+                    let args = args.into_iter().map(|e| aux(e, depth, scopes, levels)).collect();
+                    Expr::Apply { func, args }
                 }
-                Expr::Not { operand } => Expr::Not { operand: Box::new(aux(*operand, gamma)) },
+                Expr::Not { operand } => Expr::Not { operand: Box::new(aux(*operand, depth, scopes, levels)) },
                 Expr::Impl { left, right } => {
-                    let left = Box::new(aux(*left, gamma.clone()));
-                    let right = Box::new(aux(*right, gamma));
+                    let left = Box::new(aux(*left, depth, scopes, levels));
+                    let right = Box::new(aux(*right, depth, scopes, levels));
                     Expr::Impl { left, right }
                 }
                 Expr::Assoc { op, exprs } => {
-                    let exprs = exprs.into_iter().map(|e| aux(e, gamma.clone())).collect();
+                    let exprs = exprs.into_iter().map(|e| aux(e, depth, scopes, levels)).collect();
                     Expr::Assoc { op, exprs }
                 }
             }
         }
 
-        let mut gamma = vec![];
-        gamma.extend(free_vars(&self));
-
-        let mut ret = aux(self, gamma.clone());
-        // at this point, we've numbered all the vars, including the free ones
-        // replace the free vars with their original names
-        for (i, name) in gamma.into_iter().enumerate() {
-            ret = subst(ret, &format!("{}", i), Expr::Var { name });
-        }
-        ret
+        let mut levels = Levels { free: free_vars(&self), names: vec![], next: 0 };
+        aux(self, 0, &mut HashMap::new(), &mut levels)
     }
     /// Sort the names of quantified variables within runs of quantifiers of the same kind
     pub fn swap_quantifiers(self) -> Expr {
@@ -975,35 +1440,21 @@ impl Expr {
     /// 7d1. forall x, (psi → phi(x)) == psi → (forall x, phi(x))
     /// 7d2. exists x, (psi → phi(x)) == psi → (exists x, phi(x))
     pub fn normalize_prenex_laws(self) -> Expr {
-        let transform_7ab = |op: Op, exprs: Vec<Expr>| {
-            // hoist a forall out of an and/or when the binder won't capture any of the other arms
-            // if the binder doesn't occur in `all_free` (the union of all the arms freevars), it won't induce capturing
-            let mut all_free = HashSet::new();
-            for expr in &exprs {
-                all_free.extend(free_vars(&expr));
-            }
-            let mut found = None;
-            let mut others = vec![];
-            for expr in exprs.into_iter() {
-                match expr {
-                    Expr::Quant { kind, name, body } => {
-                        if found.is_none() && !all_free.contains(&name) {
-                            found = Some((kind, name));
-                            others.push(*body);
-                        } else {
-                            others.push(Expr::Quant { kind, name, body });
-                        }
-                    }
-                    _ => others.push(expr),
+        let transform_7ab = |op: Op, mut exprs: Vec<Expr>| {
+            // hoist a quantifier out of an and/or when its binder won't capture anything in the other arms;
+            // like the implication case, only quantifier arms need checking, and only for their binders
+            let eligible = |i: usize| match &exprs[i] {
+                Expr::Quant { name, .. } => !exprs.iter().enumerate().any(|(j, other)| j != i && occurs_free(other, name)),
+                _ => false,
+            };
+            if let Some(i) = (0..exprs.len()).find(|i| eligible(*i)) {
+                if let Expr::Quant { kind, name, body } = mem::replace(&mut exprs[i], Expr::Contra) {
+                    exprs[i] = *body;
+                    let body = Box::new(Expr::Assoc { op, exprs });
+                    return (Expr::Quant { kind, name, body }, true);
                 }
             }
-            if let Some((kind, name)) = found {
-                let body = Box::new(Expr::Assoc { op, exprs: others });
-                (Expr::Quant { kind, name, body }, true)
-            } else {
-                // if none of the subexpressions were quantifiers whose binder was free, `others` should be in the same as `exprs`
-                (Expr::Assoc { op, exprs: others }, false)
-            }
+            (Expr::Assoc { op, exprs }, false)
         };
         let reconstruct_7cd = |kind: QuantKind, name: String, left, right| {
             let body = Box::new(Expr::Impl { left, right });
@@ -1017,10 +1468,9 @@ impl Expr {
                     _ => (Expr::Assoc { op, exprs }, false),
                 },
                 Expr::Impl { mut left, mut right } => {
-                    let left_free = free_vars(&left);
-                    let right_free = free_vars(&right);
+                    // only the side opposite a quantifier needs checking, and only for its binder
                     left = match *left {
-                        Expr::Quant { kind, name, body } if !right_free.contains(&name) => {
+                        Expr::Quant { kind, name, body } if !occurs_free(&right, &name) => {
                             // 7c case, quantifier is flipped
                             match kind {
                                 QuantKind::Forall => {
@@ -1034,7 +1484,7 @@ impl Expr {
                         left => Box::new(left),
                     };
                     right = match *right {
-                        Expr::Quant { kind, name, body } if !left_free.contains(&name) => {
+                        Expr::Quant { kind, name, body } if !occurs_free(&left, &name) => {
                             // 7d case, quantifier is not flipped
                             // exhaustive match despite the bodies being the same: since if more quantifiers are added, should reconsider here instead of blindly hoisting the new quantifier
                             match kind {
@@ -1311,6 +1761,93 @@ impl NnfExpr {
             NnfExpr::Or { exprs } => CnfExpr::or(map_cnf(exprs)),
         }
     }
+
+    /// Convert from [`NnfExpr`](NnfExpr) into an equisatisfiable
+    /// [`CnfExpr`](CnfExpr) with the Plaisted-Greenbaum variant of the Tseitin
+    /// encoding, returning it along with the names of the auxiliary variables
+    /// it introduces.
+    ///
+    /// Where [`into_cnf`](NnfExpr::into_cnf) distributes ORs, which can make the
+    /// result exponentially larger, this names each AND nested inside an OR
+    /// with a fresh variable, so the number of clauses is linear in the size of
+    /// the expression. Expressions already in CNF get no auxiliary variables.
+    /// The result is satisfiable exactly when `self` is, and its models,
+    /// restricted to the original variables, are models of `self`.
+    ///
+    /// ```rust
+    /// use aris::parser::parse_unwrap as p;
+    /// # use aris::expr::NnfExpr;
+    ///
+    /// let (_, aux) = p("(A & B) | (C & D)").into_nnf().unwrap().into_cnf_tseitin();
+    /// assert_eq!(aux.len(), 2);
+    ///
+    /// let nnf = p("(A | ~B) & C").into_nnf().unwrap();
+    /// assert_eq!(nnf.clone().into_cnf_tseitin().0, nnf.into_cnf());
+    /// ```
+    pub fn into_cnf_tseitin(self) -> (CnfExpr, HashSet<String>) {
+        struct Encoder {
+            fresh: FreshNames,
+            clauses: Vec<Vec<(bool, String)>>,
+            aux: HashSet<String>,
+        }
+        impl Encoder {
+            /// Add clauses requiring `expr` to hold
+            fn assert(&mut self, expr: NnfExpr) {
+                match expr {
+                    NnfExpr::And { exprs } => {
+                        for e in exprs {
+                            self.assert(e);
+                        }
+                    }
+                    expr => {
+                        let mut clause = vec![];
+                        self.disjuncts(expr, &mut clause);
+                        self.clauses.push(clause);
+                    }
+                }
+            }
+            /// Add literals to `clause` whose disjunction implies `expr`
+            fn disjuncts(&mut self, expr: NnfExpr, clause: &mut Vec<(bool, String)>) {
+                match expr {
+                    NnfExpr::Lit { polarity, name } => clause.push((polarity, name)),
+                    NnfExpr::Or { exprs } => {
+                        for e in exprs {
+                            self.disjuncts(e, clause);
+                        }
+                    }
+                    NnfExpr::And { mut exprs } if exprs.len() == 1 => self.disjuncts(exprs.pop().unwrap(), clause),
+                    NnfExpr::And { exprs } => {
+                        // the auxiliary variable only has to imply the conjunction, not be
+                        // equivalent to it, since it only occurs positively
+                        let name = self.fresh.fresh("__tseitin");
+                        for e in exprs {
+                            let mut implication = vec![(false, name.clone())];
+                            self.disjuncts(e, &mut implication);
+                            self.clauses.push(implication);
+                        }
+                        self.aux.insert(name.clone());
+                        clause.push((true, name));
+                    }
+                }
+            }
+        }
+        fn avoid_names(expr: &NnfExpr, fresh: &mut FreshNames) {
+            match expr {
+                NnfExpr::Lit { name, .. } => fresh.avoid(name),
+                NnfExpr::Or { exprs } | NnfExpr::And { exprs } => {
+                    for e in exprs.iter() {
+                        avoid_names(e, fresh);
+                    }
+                }
+            }
+        }
+
+        let mut fresh = FreshNames::default();
+        avoid_names(&self, &mut fresh);
+        let mut encoder = Encoder { fresh, clauses: vec![], aux: HashSet::new() };
+        encoder.assert(self);
+        (CnfExpr(encoder.clauses), encoder.aux)
+    }
 }
 
 impl Not for NnfExpr {
@@ -1541,6 +2078,62 @@ mod tests {
         assert_eq!(subst(p("forall f, f(x) & g(y, z)"), "g", p("f")), p("forall f0, f0(x) & f(y, z)"));
     }
 
+    #[test]
+    fn test_into_cnf_tseitin() {
+        let solve = |cnf: CnfExpr| {
+            let mut solver = varisat::Solver::new();
+            solver.add_formula(&cnf.to_varisat().0);
+            solver.solve().unwrap()
+        };
+        let vars: BTreeSet<String> = ["a", "b"].iter().map(|s| s.to_string()).collect();
+        for expr in expressions_for_depth(2, 2, vars) {
+            if let Some(nnf) = expr.clone().into_nnf() {
+                let (cnf, aux) = nnf.clone().into_cnf_tseitin();
+                assert!(aux.iter().all(|name| name.starts_with("__tseitin")));
+                assert_eq!(solve(cnf), solve(nnf.into_cnf()), "{}", expr);
+            }
+        }
+        // (A0 & B0) | ... | (A19 & B19) needs 2^20 clauses when distributed, but 41 this way
+        let n = 20;
+        let expr = Expr::assoc(Op::Or, &(0..n).map(|i| Expr::assoc(Op::And, &[Expr::var(&format!("A{}", i)), Expr::var(&format!("B{}", i))])).collect::<Vec<_>>());
+        let (cnf, aux) = expr.into_nnf().unwrap().into_cnf_tseitin();
+        assert_eq!(aux.len(), n);
+        assert_eq!(cnf.0.len(), 2 * n + 1);
+    }
+
+    #[test]
+    fn test_alpha_equal() {
+        use crate::parser::parse_unwrap as p;
+        let check = |a, b, expected| {
+            let (a, b) = (p(a), p(b));
+            assert_eq!(alpha_equal(&a, &b), expected, "{} {}", a, b);
+            assert_eq!(a.replacing_bound_vars() == b.replacing_bound_vars(), expected);
+        };
+        check("forall x, P(x, y)", "forall z, P(z, y)", true);
+        check("forall x, P(x, y)", "forall y, P(y, y)", false);
+        check("forall x, forall y, R(x, y)", "forall y, forall x, R(y, x)", true);
+        check("forall x, forall y, R(x, y)", "forall y, forall x, R(x, y)", false);
+        // the inner quantifier shadows the outer one
+        check("forall x, forall x, P(x)", "forall y, forall z, P(z)", true);
+        check("forall x, forall x, P(x)", "forall y, forall z, P(y)", false);
+        check("forall x, P(x)", "exists x, P(x)", false);
+        // bound variables are never confused with free variables named like depths
+        check("forall x, P(x, 0)", "forall 0, P(0, 0)", false);
+        assert_eq!(p("forall x, P(x, 0)").replacing_bound_vars(), p("forall 1, P(1, 0)"));
+    }
+
+    #[test]
+    fn test_subst_all() {
+        use crate::parser::parse_unwrap as p;
+        let s = |pairs: &[(&'static str, &str)]| pairs.iter().map(|(x, y)| (*x, p(y))).collect::<HashMap<_, _>>();
+        // simultaneous, so swapping works
+        assert_eq!(subst_all(p("f(x, y)"), &s(&[("x", "y"), ("y", "x")])), p("f(y, x)"));
+        assert_eq!(subst_all(p("forall x, P(x) & Q(y)"), &s(&[("x", "a"), ("y", "b")])), p("forall x, P(x) & Q(b)"));
+        assert_eq!(subst_all(p("forall y, P(x, y, z)"), &s(&[("x", "y"), ("z", "w")])), p("forall y0, P(y, y0, w)"));
+        // the new name mustn't capture anything already in the body
+        assert_eq!(subst_all(p("forall y, P(x, y, y0)"), &s(&[("x", "y")])), p("forall y1, P(y, y1, y0)"));
+    }
+
     #[test]
     fn test_unify() {
         use crate::parser::parse_unwrap as p;
@@ -1551,7 +2144,7 @@ mod tests {
             if let Some(ref ret) = ret {
                 let subst_l = ret.apply(left.clone());
                 let subst_r = ret.apply(right.clone());
-                // TODO: assert alpha_equal(subst_l, subst_r);
+                assert!(alpha_equal(&subst_l, &subst_r));
                 println!("{} {} {:?} {} {}", left, right, ret, subst_l, subst_r);
             }
             ret
@@ -1566,6 +2159,25 @@ mod tests {
 
         assert_eq!(u("forall x, z", "forall y, y"), None);
         assert_eq!(u("x & y", "x | y"), None);
+        assert_eq!(u("f(x, y)", "f(y, g(x))"), None);
+        assert_eq!(u("forall x, f(x, y)", "forall z, f(z, g(w))"), Some(Substitution(vec![("y".into(), p("g(w)"))])));
+        // the constants made up for the quantifiers aren't interned
+        assert_eq!(crate::symbol::Symbol::lookup("__unification_var"), None);
+    }
+
+    #[test]
+    fn test_unify_chain() {
+        // f(x0, ..., x{n-1}) = f(x1, ..., xn) links every variable to the next, and xn = g(a) binds them all
+        let n = 1000;
+        let vars = (0..=n).map(|i| Expr::var(&format!("x{}", i))).collect::<Vec<_>>();
+        let f = |args: &[Expr]| Expr::apply(Expr::var("f"), args);
+        let c = vec![Constraint::Equal(f(&vars[..n]), f(&vars[1..])), Constraint::Equal(vars[n].clone(), Expr::apply(Expr::var("g"), &[Expr::var("a")]))];
+        let sub = unify(c.into_iter().collect()).unwrap();
+        assert_eq!(sub.0.len(), n + 1);
+        for (_, value) in sub.0.iter() {
+            assert_eq!(*value, Expr::apply(Expr::var("g"), &[Expr::var("a")]));
+        }
+        assert_eq!(sub.apply(f(&vars[..n])), sub.apply(f(&vars[1..])));
     }
 
     #[test]
@@ -1580,6 +2192,41 @@ mod tests {
         f("(a & (b & c)) | (q | r)");
     }
 
+    #[test]
+    fn test_normalize_agrees_with_transform() {
+        // double negation elimination has unique normal forms, so both engines must agree
+        let trans = |e: Expr, _node: &dyn Fn(Expr) -> Expr| match e {
+            Expr::Not { operand } => match *operand {
+                Expr::Not { operand } => (*operand, true),
+                operand => (Expr::not(operand), false),
+            },
+            e => (e, false),
+        };
+        let vars = ["a", "b"].iter().map(|s| s.to_string()).collect::<BTreeSet<String>>();
+        for e in expressions_for_depth(1, 2, vars).into_iter().map(|e| Expr::not(Expr::not(Expr::Assoc { op: Op::And, exprs: vec![e.clone(), Expr::not(Expr::not(e))] }))) {
+            assert_eq!(e.clone().normalize(&trans), e.transform(&|e| trans(e, &|x| x)));
+        }
+    }
+
+    #[test]
+    fn test_normalizers_agree_with_transform() {
+        // each of these has unique normal forms, so the bottom-up engine has to find the same ones as
+        // the top-down baseline, which reruns until nothing changes and so needs no help with new nodes
+        type Rule = fn(Expr, &dyn Fn(Expr) -> Expr) -> (Expr, bool);
+        let rules: [(&str, Rule); 4] = [
+            ("sort_commutative_ops", Expr::sort_commutative_node),
+            ("combine_associative_ops", Expr::combine_associative_node),
+            ("normalize_demorgans", Expr::demorgans_node),
+            ("normalize_idempotence", Expr::idempotence_node),
+        ];
+        let vars = ["a"].iter().map(|s| s.to_string()).collect::<BTreeSet<String>>();
+        for e in expressions_for_depth(2, 2, vars) {
+            for (name, rule) in rules.iter() {
+                assert_eq!(e.clone().normalize(rule), e.clone().transform(&|e| rule(e, &|x| x)), "{} of {}", name, e);
+            }
+        }
+    }
+
     #[test]
     fn test_expressions_for_depth() {
         use std::iter::FromIterator;
@@ -0,0 +1,127 @@
+/*!
+Hash-consed expressions: an opt-in representation of [`Expr`](crate::expr::Expr) where every
+distinct subterm is stored once in an [`ExprArena`](ExprArena) and referred to by an
+[`ExprId`](ExprId).
+
+Since structurally equal terms are interned to the same id, comparing and hashing `ExprId`s is
+O(1), and copying one is free. Ids are only meaningful relative to the arena that produced them.
+
+```
+use aris::hashcons::ExprArena;
+use aris::parser::parse_unwrap as p;
+
+let mut arena = ExprArena::new();
+let e = p("(A & B) -> (A & B)");
+let id = arena.intern_expr(&e);
+// A, B, A & B, and the implication
+assert_eq!(arena.len(), 4);
+assert_eq!(arena.intern_expr(&p("A & B")), arena.intern_expr(&p("A & B")));
+assert_eq!(arena.to_expr(id), e);
+```
+*/
+
+use crate::expr::{Expr, Op, QuantKind};
+use crate::symbol::Symbol;
+
+use std::collections::HashMap;
+
+/// A handle to an interned expression
+#[derive(Clone, Copy, Debug, PartialEq, Eq, Hash, PartialOrd, Ord)]
+pub struct ExprId(u32);
+
+/// One node of an interned expression, with its children given as ids
+#[derive(Clone, Debug, PartialEq, Eq, Hash)]
+pub enum Node {
+    Contra,
+    Taut,
+    Var { name: Symbol },
+    Apply { func: ExprId, args: Vec<ExprId> },
+    Not { operand: ExprId },
+    Impl { left: ExprId, right: ExprId },
+    Assoc { op: Op, exprs: Vec<ExprId> },
+    Quant { kind: QuantKind, name: Symbol, body: ExprId },
+}
+
+/// Storage for interned expressions
+#[derive(Clone, Debug, Default)]
+pub struct ExprArena {
+    nodes: Vec<Node>,
+    ids: HashMap<Node, ExprId>,
+}
+
+impl ExprArena {
+    pub fn new() -> Self {
+        Self::default()
+    }
+    /// Number of distinct nodes interned so far
+    pub fn len(&self) -> usize {
+        self.nodes.len()
+    }
+    pub fn is_empty(&self) -> bool {
+        self.nodes.is_empty()
+    }
+    /// Get the id for a node, adding it if it isn't already present
+    pub fn intern(&mut self, node: Node) -> ExprId {
+        if let Some(id) = self.ids.get(&node) {
+            return *id;
+        }
+        let id = ExprId(self.nodes.len() as u32);
+        self.nodes.push(node.clone());
+        self.ids.insert(node, id);
+        id
+    }
+    /// Look up the node for an id
+    pub fn node(&self, id: ExprId) -> &Node {
+        &self.nodes[id.0 as usize]
+    }
+    /// Intern an expression and all of its subexpressions
+    pub fn intern_expr(&mut self, expr: &Expr) -> ExprId {
+        let node = match expr {
+            Expr::Contra => Node::Contra,
+            Expr::Taut => Node::Taut,
+            Expr::Var { name } => Node::Var { name: Symbol::intern(name) },
+            Expr::Apply { func, args } => Node::Apply { func: self.intern_expr(func), args: args.iter().map(|arg| self.intern_expr(arg)).collect() },
+            Expr::Not { operand } => Node::Not { operand: self.intern_expr(operand) },
+            Expr::Impl { left, right } => Node::Impl { left: self.intern_expr(left), right: self.intern_expr(right) },
+            Expr::Assoc { op, exprs } => Node::Assoc { op: *op, exprs: exprs.iter().map(|e| self.intern_expr(e)).collect() },
+            Expr::Quant { kind, name, body } => Node::Quant { kind: *kind, name: Symbol::intern(name), body: self.intern_expr(body) },
+        };
+        self.intern(node)
+    }
+    /// Rebuild the tree form of an interned expression
+    pub fn to_expr(&self, id: ExprId) -> Expr {
+        match self.node(id) {
+            Node::Contra => Expr::Contra,
+            Node::Taut => Expr::Taut,
+            Node::Var { name } => Expr::Var { name: name.as_str().to_owned() },
+            Node::Apply { func, args } => Expr::Apply { func: Box::new(self.to_expr(*func)), args: args.iter().map(|arg| self.to_expr(*arg)).collect() },
+            Node::Not { operand } => Expr::Not { operand: Box::new(self.to_expr(*operand)) },
+            Node::Impl { left, right } => Expr::Impl { left: Box::new(self.to_expr(*left)), right: Box::new(self.to_expr(*right)) },
+            Node::Assoc { op, exprs } => Expr::Assoc { op: *op, exprs: exprs.iter().map(|e| self.to_expr(*e)).collect() },
+            Node::Quant { kind, name, body } => Expr::Quant { kind: *kind, name: name.as_str().to_owned(), body: Box::new(self.to_expr(*body)) },
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    use crate::expr::expressions_for_depth;
+
+    use std::collections::BTreeSet;
+
+    #[test]
+    fn test_intern_roundtrip() {
+        let vars: BTreeSet<String> = ["a"].iter().map(|s| s.to_string()).collect();
+        let exprs = expressions_for_depth(2, 2, vars);
+        let mut arena = ExprArena::new();
+        let ids = exprs.iter().map(|e| arena.intern_expr(e)).collect::<Vec<_>>();
+        // distinct expressions get distinct ids, and equal ones get the same id
+        assert_eq!(ids.iter().collect::<BTreeSet<_>>().len(), exprs.len());
+        for (e, id) in exprs.iter().zip(ids.iter()) {
+            assert_eq!(arena.intern_expr(e), *id);
+            assert_eq!(&arena.to_expr(*id), e);
+        }
+    }
+}
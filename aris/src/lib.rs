@@ -1,11 +1,19 @@
 #[macro_use]
 extern crate lazy_static;
 
+mod egraph;
 mod equivs;
 pub mod expr;
+pub mod hashcons;
 pub mod macros;
+pub mod metrics;
 pub mod parser;
 pub mod proofs;
 mod rewrite_rules;
+pub mod rule_cache;
 pub mod rules;
+mod sat;
+pub mod symbol;
+pub mod truth_table;
+pub mod wire;
 mod zipper_vec;
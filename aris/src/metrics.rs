@@ -0,0 +1,173 @@
+/*!
+Process-wide counters and latency histograms for profiling the checker from its embedders.
+
+Collection is off by default, and while it's off every entry point returns after a single relaxed
+atomic load, without reading the clock. The clock is only read while enabled, so targets without
+`std::time::Instant` (like the web app) are unaffected as long as they never enable it.
+
+```
+use aris::metrics::{self, Counter};
+
+metrics::set_enabled(true);
+metrics::count(Counter::BytesMarshalled, 10);
+let snapshot = metrics::snapshot();
+assert!(snapshot[Counter::BytesMarshalled as usize] >= 10);
+metrics::set_enabled(false);
+```
+
+# Snapshot layout
+
+[`snapshot`](snapshot) flattens everything into one `Vec<u64>`:
+
+1. `COUNTERS` counters, indexed by [`Counter`](Counter)
+2. `TIMERS` histograms of `BUCKETS` buckets each, indexed by [`Timer`](Timer); bucket `i` counts
+   durations of `[2^i, 2^(i+1))` nanoseconds, and the last bucket also counts anything longer
+3. the number of checks of each rule, in the order of `RuleM::ALL_RULES`
+4. the number of those checks that failed, in the same order
+*/
+
+use crate::rules::{Rule, RuleM};
+
+use std::collections::HashMap;
+use std::sync::atomic::{AtomicBool, AtomicU64, Ordering};
+use std::time::Instant;
+
+static ENABLED: AtomicBool = AtomicBool::new(false);
+
+/// Event counters
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+pub enum Counter {
+    /// Calls to `parser::parse`
+    ParseCalls,
+    /// Native methods entered from an embedding language
+    ForeignCalls,
+    /// Bytes of encoded expressions or results passed to or from an embedding language
+    BytesMarshalled,
+    /// Rule checks answered by `rule_cache`
+    RuleCacheHits,
+    /// Rule checks that `rule_cache` could have answered, but didn't have yet
+    RuleCacheMisses,
+}
+pub const COUNTERS: usize = 5;
+
+/// Latency histograms
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+pub enum Timer {
+    /// Time spent in `RuleT::check`
+    RuleCheck,
+    /// Time spent in `parser::parse`
+    Parse,
+    /// Time spent in native methods entered from an embedding language
+    ForeignCall,
+}
+pub const TIMERS: usize = 3;
+
+/// Number of log2 buckets per histogram; `2^40` nanoseconds is about 18 minutes
+pub const BUCKETS: usize = 40;
+
+struct Metrics {
+    counters: Vec<AtomicU64>,
+    histograms: Vec<AtomicU64>,
+    rule_checks: Vec<AtomicU64>,
+    rule_failures: Vec<AtomicU64>,
+}
+
+fn zeroes(n: usize) -> Vec<AtomicU64> {
+    (0..n).map(|_| AtomicU64::new(0)).collect()
+}
+
+lazy_static! {
+    static ref METRICS: Metrics = Metrics { counters: zeroes(COUNTERS), histograms: zeroes(TIMERS * BUCKETS), rule_checks: zeroes(RuleM::ALL_RULES.len()), rule_failures: zeroes(RuleM::ALL_RULES.len()) };
+    /// The index of each rule in `RuleM::ALL_RULES`, by serialized name, since `Rule` isn't `Hash`
+    static ref RULE_INDICES: HashMap<&'static str, usize> = RuleM::ALL_SERIALIZED_NAMES.iter().enumerate().map(|(i, name)| (*name, i)).collect();
+}
+
+/// Turn collection on or off; turning it off keeps the values collected so far
+pub fn set_enabled(enabled: bool) {
+    ENABLED.store(enabled, Ordering::Relaxed);
+}
+
+pub fn is_enabled() -> bool {
+    ENABLED.load(Ordering::Relaxed)
+}
+
+/// Add `n` to a counter, if collection is enabled
+pub fn count(counter: Counter, n: u64) {
+    if is_enabled() {
+        METRICS.counters[counter as usize].fetch_add(n, Ordering::Relaxed);
+    }
+}
+
+/// The start of a timed span, which is empty (and free) if collection was disabled when it started
+#[must_use]
+pub struct Timing(Option<Instant>);
+
+/// Start timing a span, to be finished with `Timing::record`
+pub fn start() -> Timing {
+    Timing(if is_enabled() { Some(Instant::now()) } else { None })
+}
+
+impl Timing {
+    /// Add the time elapsed since `start` to a histogram
+    pub fn record(self, timer: Timer) {
+        if let Some(start) = self.0 {
+            let nanos = start.elapsed().as_nanos() as u64;
+            let bucket = std::cmp::min((64 - nanos.leading_zeros() as usize).saturating_sub(1), BUCKETS - 1);
+            METRICS.histograms[timer as usize * BUCKETS + bucket].fetch_add(1, Ordering::Relaxed);
+        }
+    }
+}
+
+/// Run `check`, a check of `rule`, recording its latency and outcome against the rule
+pub fn time_rule_check<A, E, F: FnOnce() -> Result<A, E>>(rule: &Rule, check: F) -> Result<A, E> {
+    if !is_enabled() {
+        return check();
+    }
+    let timing = start();
+    let ret = check();
+    timing.record(Timer::RuleCheck);
+    if let Some(&i) = RULE_INDICES.get(RuleM::to_serialized_name(*rule)) {
+        METRICS.rule_checks[i].fetch_add(1, Ordering::Relaxed);
+        if ret.is_err() {
+            METRICS.rule_failures[i].fetch_add(1, Ordering::Relaxed);
+        }
+    }
+    ret
+}
+
+/// Read all values, in the layout described in the module documentation
+pub fn snapshot() -> Vec<u64> {
+    let m = &*METRICS;
+    m.counters.iter().chain(m.histograms.iter()).chain(m.rule_checks.iter()).chain(m.rule_failures.iter()).map(|x| x.load(Ordering::Relaxed)).collect()
+}
+
+/// Set all values back to zero
+pub fn reset() {
+    let m = &*METRICS;
+    for x in m.counters.iter().chain(m.histograms.iter()).chain(m.rule_checks.iter()).chain(m.rule_failures.iter()) {
+        x.store(0, Ordering::Relaxed);
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_snapshot_layout() {
+        // other tests may be running checks concurrently, so only check lower bounds and sizes
+        let n = RuleM::ALL_RULES.len();
+        set_enabled(true);
+        let before = snapshot();
+        assert_eq!(before.len(), COUNTERS + TIMERS * BUCKETS + 2 * n);
+        count(Counter::ParseCalls, 3);
+        let i = RuleM::ALL_RULES.iter().position(|r| *r == RuleM::Reit).unwrap();
+        assert_eq!(time_rule_check(&RuleM::Reit, || Err::<(), ()>(())), Err(()));
+        let after = snapshot();
+        assert!(after[Counter::ParseCalls as usize] >= before[Counter::ParseCalls as usize] + 3);
+        let histogram = COUNTERS + Timer::RuleCheck as usize * BUCKETS;
+        assert!(after[histogram..histogram + BUCKETS].iter().sum::<u64>() > before[histogram..histogram + BUCKETS].iter().sum::<u64>());
+        assert!(after[COUNTERS + TIMERS * BUCKETS + i] > before[COUNTERS + TIMERS * BUCKETS + i]);
+        assert!(after[COUNTERS + TIMERS * BUCKETS + n + i] > before[COUNTERS + TIMERS * BUCKETS + n + i]);
+    }
+}
@@ -8,8 +8,12 @@ use nom::*;
 
 /// parser::parse parses a string slice into an Expr AST, returning None if there's an error
 pub fn parse(input: &str) -> Option<Expr> {
+    let timing = crate::metrics::start();
+    crate::metrics::count(crate::metrics::Counter::ParseCalls, 1);
     let newlined = format!("{}\n", input);
-    main(&newlined).map(|(_, expr)| expr).ok()
+    let ret = main(&newlined).map(|(_, expr)| expr).ok();
+    timing.record(crate::metrics::Timer::Parse);
+    ret
 }
 
 /// parser::parse_unwrap is a convenience function used in the tests, and panics if the input doesn't parse
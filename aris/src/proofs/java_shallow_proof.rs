@@ -6,7 +6,6 @@ use crate::proofs::PjsRef;
 use crate::proofs::Proof;
 use crate::rules::ProofCheckError;
 use crate::rules::RuleM;
-use crate::rules::RuleT;
 
 use frunk_core::coproduct::Coproduct;
 
@@ -80,7 +79,7 @@ impl Proof for JavaShallowProof {
         match self.lookup_pj(r) {
             None => Err(ProofCheckError::LineDoesNotExist(r.clone())),
             Some(Inl(_)) => Ok(()), // premises are always valid
-            Some(Inr(Inl(Justification(conclusion, rule, deps, sdeps)))) => rule.check(self, conclusion, deps, sdeps),
+            Some(Inr(Inl(Justification(conclusion, rule, deps, sdeps)))) => crate::metrics::time_rule_check(&rule, || crate::rule_cache::check(rule, self, conclusion, deps, sdeps)),
             Some(Inr(Inr(void))) => match void {},
         }
     }
@@ -1,10 +1,12 @@
 use crate::expr::Expr;
+use crate::proofs::pj_to_pjs;
 use crate::proofs::Justification;
 use crate::proofs::PjRef;
 use crate::proofs::Proof;
 use crate::rules::RuleM;
 use crate::zipper_vec::ZipperVec;
 
+use std::collections::HashSet;
 use std::fmt::Debug;
 
 use frunk_core::coproduct::Coproduct;
@@ -48,6 +50,8 @@ impl<P: Proof> Line<P> {
 pub struct LinedProof<P: Proof> {
     pub proof: P,
     pub lines: ZipperVec<Line<P>>,
+    /// Lines whose expression, or the expression of something they depend on, changed since the last `take_stale`
+    stale: HashSet<PjRef<P>>,
 }
 
 impl<P: Proof + Debug> Debug for LinedProof<P>
@@ -76,7 +80,7 @@ where
     P::SubproofReference: Debug,
 {
     pub fn new() -> Self {
-        LinedProof { proof: P::new(), lines: ZipperVec::new() }
+        LinedProof { proof: P::new(), lines: ZipperVec::new(), stale: HashSet::new() }
     }
     pub fn len(&self) -> usize {
         self.lines.len()
@@ -110,9 +114,8 @@ where
         ret.proof = p;
         ret
     }
-    pub fn add_line(&mut self, i: usize, is_premise: bool, subproof_level: usize) {
+    pub fn add_line(&mut self, i: usize, is_premise: bool, _subproof_level: usize) {
         use frunk_core::coproduct::Coproduct::{Inl, Inr};
-        println!("add_line {:?} {:?} {:?}", i, is_premise, subproof_level);
         let const_true = Expr::Taut;
         let line: Option<Line<P>> = self.lines.get(i).cloned();
         match line {
@@ -130,14 +133,72 @@ where
                 self.lines.insert_relative(Line { raw_expr: "".into(), is_premise, reference: r, subreference: None /* TODO */ }, &line, true);
             }
         };
-
-        println!("{:?}", self.proof);
     }
+    /// Set the text of line `i`, and the expression of its premise or step to the parse of that text.
+    /// The line's current text doubles as a parse cache: resubmitting unchanged text (as the editor does on keystrokes elsewhere) doesn't reparse.
+    /// If the expression changes, the line and its dependents are added to `stale`; text that doesn't parse leaves the previous expression in place.
     pub fn set_expr(&mut self, i: usize, text: String) {
-        println!("set_expr {:?} {:?}", i, text);
+        use frunk_core::coproduct::Coproduct::{Inl, Inr};
+        let line = match self.lines.get_mut(i) {
+            Some(line) if line.raw_expr != text => line,
+            _ => return,
+        };
+        let parsed = crate::parser::parse(&text);
+        line.raw_expr = text;
+        let reference = line.reference.clone();
+        let expr = match parsed {
+            Some(expr) => expr,
+            None => return,
+        };
+        let replace = |old: &mut Expr| {
+            if *old == expr {
+                false
+            } else {
+                *old = expr;
+                true
+            }
+        };
+        let changed = match reference.clone() {
+            Inl(pr) => self.proof.with_mut_premise(&pr, replace),
+            Inr(Inl(jr)) => self.proof.with_mut_step(&jr, |just| replace(&mut just.0)),
+            Inr(Inr(void)) => match void {},
+        };
+        if changed == Some(true) {
+            self.mark_stale(reference);
+        }
+    }
+    /// Add `r` to `stale`, along with every line that depends on it, either directly or by citing a subproof that contains it
+    fn mark_stale(&mut self, r: PjRef<P>) {
+        use frunk_core::coproduct::Coproduct::{Inl, Inr};
+        let proof = &self.proof;
+        let enclosing_subproofs = |r: &PjRef<P>| {
+            let mut ret = vec![];
+            let mut current = pj_to_pjs::<P>(r.clone());
+            while let Some(parent) = proof.parent_of_line(&current) {
+                ret.push(parent.clone());
+                current = Coproduct::inject(parent);
+            }
+            ret
+        };
+        let mut changed_subs: HashSet<P::SubproofReference> = enclosing_subproofs(&r).into_iter().collect();
+        self.stale.insert(r);
+        // dependencies always point to earlier lines, so a single pass in line order reaches everything transitively
+        for line in self.lines.iter() {
+            if let Inr(Inl(jr)) = &line.reference {
+                if let Some(Justification(_, _, deps, sdeps)) = proof.lookup_step(jr) {
+                    if deps.iter().any(|dep| self.stale.contains(dep)) || sdeps.iter().any(|sdep| changed_subs.contains(sdep)) {
+                        changed_subs.extend(enclosing_subproofs(&line.reference));
+                        self.stale.insert(line.reference.clone());
+                    }
+                }
+            }
+        }
+    }
+    /// Take the set of lines needing re-verification, leaving it empty
+    pub fn take_stale(&mut self) -> HashSet<PjRef<P>> {
+        std::mem::take(&mut self.stale)
     }
     pub fn move_cursor(&mut self, i: usize) {
-        println!("move_cursor {:?}", i);
         self.lines.move_cursor(i);
     }
     pub fn delete(&mut self, i: usize) {
@@ -181,4 +242,30 @@ mod tests {
         f(0);
         f(1);
     }
+
+    #[test]
+    fn test_set_expr() {
+        use crate::parser::parse_unwrap as p;
+        use frunk_core::coproduct::Coproduct::Inl;
+        let mut prf = PooledProof::<Hlist![Expr]>::new();
+        let r1 = prf.add_premise(p("A"));
+        let r2 = prf.add_premise(p("B"));
+        let r3 = prf.add_step(Justification(p("A & B"), RuleM::AndIntro, vec![Inl(r1), Inl(r2)], vec![]));
+        let r4 = prf.add_step(Justification(p("B"), RuleM::Reit, vec![Inl(r2)], vec![]));
+        let mut lp = LinedProof::from_proof(prf);
+
+        lp.set_expr(0, "A".into());
+        assert!(lp.take_stale().is_empty());
+
+        lp.set_expr(0, "C".into());
+        assert_eq!(lp.proof.lookup_premise(&r1), Some(p("C")));
+        assert_eq!(lp.take_stale(), vec![Inl(r1), Coproduct::inject(r3)].into_iter().collect::<HashSet<_>>());
+
+        lp.set_expr(1, "(B".into());
+        assert_eq!(lp.proof.lookup_premise(&r2), Some(p("B")));
+        assert!(lp.take_stale().is_empty());
+
+        lp.set_expr(3, "B | B".into());
+        assert_eq!(lp.take_stale(), vec![Coproduct::inject(r4)].into_iter().collect::<HashSet<_>>());
+    }
 }
@@ -115,7 +115,6 @@ use crate::proofs::PjRef;
 use crate::proofs::PjsRef;
 use crate::proofs::Proof;
 use crate::rules::ProofCheckError;
-use crate::rules::RuleT;
 use crate::zipper_vec::ZipperVec;
 
 use std::collections::BTreeMap;
@@ -296,7 +295,7 @@ impl<Tail: Default + Clone> Proof for PooledSubproof<HCons<Expr, Tail>> {
         unsafe { &*self.pools }.just_map.get(r).map(|x| x.clone().map0(|y| y.head))
     }
     fn lookup_subproof(&self, r: &Self::SubproofReference) -> Option<Self::Subproof> {
-        unsafe { &mut *self.pools }.sub_map.get(r).cloned()
+        unsafe { &*self.pools }.sub_map.get(r).cloned()
     }
     fn with_mut_premise<A, F: FnOnce(&mut Expr) -> A>(&mut self, r: &Self::PremiseReference, f: F) -> Option<A> {
         let pools = unsafe { &mut *self.pools };
@@ -414,7 +413,7 @@ impl<Tail: Default + Clone> Proof for PooledSubproof<HCons<Expr, Tail>> {
         self.line_list.iter().cloned().collect()
     }
     fn parent_of_line(&self, r: &PjsRef<Self>) -> Option<Self::SubproofReference> {
-        let pools = unsafe { &mut *self.pools };
+        let pools = unsafe { &*self.pools };
         pools.parent_of(r)
     }
     fn verify_line(&self, r: &PjRef<Self>) -> Result<(), ProofCheckError<PjRef<Self>, Self::SubproofReference>> {
@@ -424,11 +423,6 @@ impl<Tail: Default + Clone> Proof for PooledSubproof<HCons<Expr, Tail>> {
             Some(Inl(_)) => Ok(()), // premises are always valid
             Some(Inr(Inl(Justification(conclusion, rule, deps, sdeps)))) => {
                 // TODO: efficient caching for ReferencesLaterLine check, so this isn't potentially O(n)
-                let mut valid_deps = HashSet::new();
-                let mut valid_sdeps = HashSet::new();
-                self.possible_deps_for_line(r, &mut valid_deps, &mut valid_sdeps);
-                println!("possible_deps_for_line: {:?} {:?} {:?}", r, valid_deps, valid_sdeps);
-
                 for dep in deps.iter() {
                     let dep_co = Coproduct::inject(*dep);
                     if !self.can_reference_dep(r, &dep_co) {
@@ -441,7 +435,7 @@ impl<Tail: Default + Clone> Proof for PooledSubproof<HCons<Expr, Tail>> {
                         return Err(ProofCheckError::ReferencesLaterLine(*r, sdep_co));
                     }
                 }
-                rule.check(self, conclusion, deps, sdeps)
+                crate::metrics::time_rule_check(&rule, || crate::rule_cache::check(rule, self, conclusion, deps, sdeps))
             }
             Some(Inr(Inr(void))) => match void {},
         }
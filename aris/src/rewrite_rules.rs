@@ -1,254 +1,246 @@
 //! Fixpoint engine for applying transformations to a formula in a loop until
 //! they stop applying
 
+use crate::expr::alpha_equal;
 use crate::expr::free_vars;
-use crate::expr::gen_var;
-use crate::expr::subst;
-use crate::expr::Constraint;
 use crate::expr::Expr;
+use crate::expr::Op;
+use crate::expr::QuantKind;
 
+use std::collections::BTreeMap;
+use std::collections::BTreeSet;
 use std::collections::HashMap;
-use std::collections::HashSet;
 
 use itertools::Itertools;
 
 #[derive(Clone, Debug, PartialEq, Eq, Hash)]
 pub struct RewriteRule {
     pub reductions: Vec<(Expr, Expr)>,
+    /// `reductions` compiled for matching
+    index: PatternIndex,
 }
 
 impl RewriteRule {
     /// Construct a rewrite ruleset from a list of reduction patterns of the form
     /// [("pattern", "replacement"), ...]
-    /// Will parse strings into `Expr`s and permute all commutative binops
+    /// Will parse strings into `Expr`s. Operands of `unordered_op` operators in
+    /// patterns match in any order, so patterns only need to be listed once.
     pub fn from_patterns(patterns: &[(&str, &str)]) -> Self {
         use crate::parser::parse_unwrap as p;
-        let reductions = permute_patterns(patterns.iter().map(|(premise, conclusion)| (p(premise), p(conclusion))).collect::<Vec<_>>());
+        let reductions = patterns.iter().map(|(premise, conclusion)| (p(premise), p(conclusion))).collect::<Vec<_>>();
+        let index = PatternIndex::new(&reductions);
 
-        RewriteRule { reductions }
+        RewriteRule { reductions, index }
     }
 
     /// Reduce an expression with the rewrite rule's reductions
+    ///
+    /// At every node, the first reduction (in order) whose pattern matches is applied, where the free
+    /// variables of a pattern can match any subexpression.
+    ///
+    /// Limitations: Cannot do variadic versions of assoc binops, you need a constant number of args
     pub fn reduce(&self, e: Expr) -> Expr {
-        reduce_pattern(e, &self.reductions)
+        e.transform(&|expr| self.reduce_node(expr))
     }
 
-    /// Reduce an expression with the rewrite rule's reductions, yielding a set
-    /// of possible reductions
-    pub fn reduce_set(&self, e: Expr) -> HashSet<Expr> {
-        reduce_pattern_set(e, &self.reductions)
+    /// Helper function for `reduce()`; try to reduce `expr` at its root. The
+    /// returned `bool` in the tuple indicates whether a reduction applied.
+    fn reduce_node(&self, expr: Expr) -> (Expr, bool) {
+        let index = &self.index;
+        let candidates = index.by_shape.get(&Shape::of(&expr)).map_or(&[][..], |v| &v[..]);
+        for &i in candidates.iter().merge(index.wildcards.iter()) {
+            let (pattern, replace) = &self.reductions[i];
+            let mut result = None;
+            match_pattern(pattern, &expr, &index.vars[i], &mut HashMap::new(), &mut |bindings| {
+                result = Some(instantiate(replace, bindings));
+                true
+            });
+            if let Some(result) = result {
+                return (result, true);
+            }
+        }
+        (expr, false)
     }
 }
 
-/// Permute all binary and associative operations in an expression, resulting in a list of
-/// expressions of all permutations
-/// E.g. ((A & B) & C) ==> [((A & B) & C), ((B & A) & C), (C & (A & B)), (C & (B & A))]
-/// This function is extremely slow! Don't use it for large expressions or too often.
-fn permute_ops(e: Expr) -> Vec<Expr> {
-    match e {
-        // Trivial cases
-        e @ Expr::Contra => vec![e],
-        e @ Expr::Taut => vec![e],
-        e @ Expr::Var { .. } => vec![e],
-        Expr::Apply { func, args } => std::iter::once(permute_ops(*func))
-            .chain(args.into_iter().map(permute_ops))
-            .multi_cartesian_product()
-            .map(|mut args| {
-                let func = Box::new(args.remove(0));
-                Expr::Apply { func, args }
-            })
-            .collect(),
-        Expr::Not { operand } => {
-            // Just permute the operands and return them
-            let results = permute_ops(*operand);
-            results.into_iter().map(|e| Expr::Not { operand: Box::new(e) }).collect::<Vec<_>>()
-        }
-        Expr::Impl { left, right } => {
-            let permute_left = permute_ops(*left);
-            let permute_right = permute_ops(*right);
-
-            let mut results = vec![];
-            for left in &permute_left {
-                for right in &permute_right {
-                    results.push(Expr::implies(left.clone(), right.clone()));
-                }
-            }
-            results
-        }
-        Expr::Assoc { op, exprs } => {
-            // For every combination of the args, add the cartesian product of the permutations of their parameters
-
-            let len = exprs.len();
-
-            // All orderings of arguments
-            exprs
-                .into_iter()
-                .permutations(len)
-                .flat_map(|args| {
-                    // Permuting every expression in the current list of args
-                    let permutations = args.into_iter().map(permute_ops).collect::<Vec<_>>();
-                    // Convert the Vec<Vec<Expr>> to a Vec<Vec<&Expr>>
-                    let ref_perms = permutations.iter().map(|l| l.iter().collect::<Vec<_>>());
-                    // Then get a cartesian product of all permutations (this is the slow part)
-                    // Gives you a list of new argument lists
-                    let product = ref_perms.multi_cartesian_product();
-                    // Then just turn everything from that list into an assoc binop
-                    // The `collect()` is necessary to maintain the borrows from permutations
-                    product.into_iter().map(|args| Expr::Assoc { op, exprs: args.into_iter().cloned().collect::<Vec<_>>() }).collect::<Vec<_>>()
-                })
-                .collect::<Vec<_>>()
-        }
-        Expr::Quant { kind, name, body } => {
-            let results = permute_ops(*body);
-            results.into_iter().map(|e| Expr::Quant { kind, name: name.clone(), body: Box::new(e) }).collect::<Vec<_>>()
+/// Whether the operands of `op` in a pattern may match the operands of an
+/// expression in any order
+pub fn unordered_op(op: Op) -> bool {
+    match op {
+        Op::And | Op::Or | Op::Bicon => true,
+        Op::Equiv | Op::Add | Op::Mult => false,
+    }
+}
+
+/// The operator at the root of an expression, along with its number of operands
+#[derive(Clone, Copy, Debug, PartialEq, Eq, Hash, PartialOrd, Ord)]
+enum Shape {
+    Contra,
+    Taut,
+    Var,
+    Apply(usize),
+    Not,
+    Impl,
+    Assoc(Op, usize),
+    Quant(QuantKind),
+}
+
+impl Shape {
+    fn of(e: &Expr) -> Shape {
+        match e {
+            Expr::Contra => Shape::Contra,
+            Expr::Taut => Shape::Taut,
+            Expr::Var { .. } => Shape::Var,
+            Expr::Apply { args, .. } => Shape::Apply(args.len()),
+            Expr::Not { .. } => Shape::Not,
+            Expr::Impl { .. } => Shape::Impl,
+            Expr::Assoc { op, exprs } => Shape::Assoc(*op, exprs.len()),
+            Expr::Quant { kind, .. } => Shape::Quant(*kind),
         }
     }
 }
 
-/// Permute the search expression of every pattern, all mapping to the same replacement
-/// E.g. [(A & B) -> C, (A | B) -> C] ==> [(A & B) -> C, (B & A) -> C, (A | B) -> C, (B | A) -> C]
-fn permute_patterns(patterns: Vec<(Expr, Expr)>) -> Vec<(Expr, Expr)> {
-    // Permute_ops of all input patterns
-    patterns.into_iter().flat_map(|(find, replace)| permute_ops(find).into_iter().map(move |find| (find, replace.clone()))).collect::<Vec<_>>()
+/// The reductions of a `RewriteRule` grouped by the shape of their patterns, so
+/// that a node is only tested against the patterns that could match it
+#[derive(Clone, Debug, PartialEq, Eq, Hash)]
+struct PatternIndex {
+    /// Indices of the reductions with each pattern shape, in increasing order
+    by_shape: BTreeMap<Shape, Vec<usize>>,
+    /// Indices of the reductions whose pattern is a lone variable, which matches anything
+    wildcards: Vec<usize>,
+    /// The pattern variables of each reduction
+    vars: Vec<BTreeSet<String>>,
 }
 
-/// Reduce an expression by a pattern with a set of variables
-///
-/// Basically this lets you construct pattern-based expression reductions by defining the reduction
-/// as a pattern instead of manually matching expressions.
-///
-/// Patterns are defined as `(match, replace)` where any expression in the tree of `e` that unifies
-/// with `match` on all pattern variables defined in `pattern_vars` will be replaced by `replace` with
-/// the substitutions from the unification.
-///
-/// Limitations: Cannot do variadic versions of assoc binops, you need a constant number of args
-fn reduce_pattern(e: Expr, patterns: &[(Expr, Expr)]) -> Expr {
-    let patterns = freevarsify_pattern(&e, patterns);
-    e.transform(&|expr| reduce_transform_func(expr, &patterns))
+impl PatternIndex {
+    fn new(reductions: &[(Expr, Expr)]) -> Self {
+        let mut index = PatternIndex { by_shape: BTreeMap::new(), wildcards: vec![], vars: vec![] };
+        for (i, (pattern, replace)) in reductions.iter().enumerate() {
+            let vars = free_vars(pattern);
+            // Make sure our replacement doesn't have any new vars
+            assert!(free_vars(replace).is_subset(&vars));
+            // Matching compares binders by name and instantiating doesn't rename them, so make sure
+            // nothing binds variables
+            assert!(!has_quantifier(pattern) && !has_quantifier(replace));
+            if let Expr::Var { .. } = pattern {
+                index.wildcards.push(i);
+            } else {
+                index.by_shape.entry(Shape::of(pattern)).or_insert_with(Vec::new).push(i);
+            }
+            index.vars.push(vars.into_iter().collect());
+        }
+        index
+    }
 }
 
-/// Like `reduce_pattern()`, but creates a set of possible reductions. This set
-/// will contain all levels of reduction (up to full normalization), and on all
-/// sub-nodes of the expression.
-fn reduce_pattern_set(e: Expr, patterns: &[(Expr, Expr)]) -> HashSet<Expr> {
-    let patterns = freevarsify_pattern(&e, patterns);
-    e.transform_set(&|expr| reduce_transform_func(expr, &patterns))
+/// Whether `e` has a quantifier anywhere in it
+fn has_quantifier(e: &Expr) -> bool {
+    match e {
+        Expr::Contra | Expr::Taut | Expr::Var { .. } => false,
+        Expr::Apply { func, args } => has_quantifier(func) || args.iter().any(has_quantifier),
+        Expr::Not { operand } => has_quantifier(operand),
+        Expr::Impl { left, right } => has_quantifier(left) || has_quantifier(right),
+        Expr::Assoc { exprs, .. } => exprs.iter().any(has_quantifier),
+        Expr::Quant { .. } => true,
+    }
 }
 
-/// Helper function for `reduce_pattern()` and `reduce_pattern_set()`; try to
-/// reduce `expr` using `patterns`. The returned `bool` in the tuple indicates
-/// whether the transformation can be done again.
+/// Bindings of pattern variables to subexpressions
+type Bindings<'a> = HashMap<&'a str, &'a Expr>;
+
+/// One-way matching: find the ways `expr` is an instance of `pattern` when only
+/// the variables in `vars` may be instantiated, calling `k` with each extension
+/// of `bindings` in turn until it returns true. Returns whether `k` did.
 ///
-/// Parameters:
-///   * `expr` - expression to reduce
-///   * `patterns` - patterns returned by `freevarsify_pattern()`
-fn reduce_transform_func(expr: Expr, patterns: &[(Expr, Expr, HashSet<String>)]) -> (Expr, bool) {
-    // Try all our patterns at every level of the tree
-    for (pattern, replace, pattern_vars) in patterns {
-        // Unify3D
-        let ret = crate::expr::unify(vec![Constraint::Equal(pattern.clone(), expr.clone())].into_iter().collect());
-        if let Some(ret) = ret {
-            // Collect all unification results and make sure we actually match exactly
-            let mut subs = HashMap::new();
-            let mut any_bad = false;
-            for subst in ret.0 {
-                // We only want to unify our pattern variables. This prevents us from going backwards
-                // and unifying a pattern variable in expr with some expression of our pattern variable
-                if pattern_vars.contains(&subst.0) {
-                    // Sanity check: Only one unification per variable
-                    assert!(subs.insert(subst.0, subst.1).is_none());
-                } else {
-                    any_bad = true;
-                }
+/// Operands of `unordered_op` operators are tried in every order, by
+/// backtracking, so that a commutative pattern is matched without listing each
+/// of its permutations.
+fn match_pattern<'a>(pattern: &'a Expr, expr: &'a Expr, vars: &BTreeSet<String>, bindings: &mut Bindings<'a>, k: &mut dyn FnMut(&mut Bindings<'a>) -> bool) -> bool {
+    match (pattern, expr) {
+        (Expr::Var { name }, _) if vars.contains(name) => match bindings.get(name.as_str()) {
+            // every occurrence of a variable has to match the same subexpression, up to renaming bound variables
+            Some(bound) => alpha_equal(bound, expr) && k(bindings),
+            None => {
+                bindings.insert(name, expr);
+                let found = k(bindings);
+                bindings.remove(name.as_str());
+                found
             }
-
-            // Make sure we have a substitution for every variable in the pattern set (and only for them)
-            if !any_bad && subs.len() == pattern_vars.len() {
-                let subst_replace = subs.into_iter().fold(replace.clone(), |z, (x, y)| crate::expr::subst(z, &x, y));
-                return (subst_replace, true);
+        },
+        (Expr::Contra, Expr::Contra) | (Expr::Taut, Expr::Taut) => k(bindings),
+        (Expr::Var { name: pn }, Expr::Var { name: en }) => pn == en && k(bindings),
+        (Expr::Apply { func: pf, args: pa }, Expr::Apply { func: ef, args: ea }) if pa.len() == ea.len() => {
+            let pats = std::iter::once(&**pf).chain(pa.iter()).collect::<Vec<_>>();
+            let exprs = std::iter::once(&**ef).chain(ea.iter()).collect::<Vec<_>>();
+            match_each(&pats, &exprs, vars, bindings, k)
+        }
+        (Expr::Not { operand: po }, Expr::Not { operand: eo }) => match_pattern(po, eo, vars, bindings, k),
+        (Expr::Impl { left: pl, right: pr }, Expr::Impl { left: el, right: er }) => match_each(&[&**pl, &**pr], &[&**el, &**er], vars, bindings, k),
+        (Expr::Assoc { op: po, exprs: pe }, Expr::Assoc { op: eo, exprs: ee }) if po == eo && pe.len() == ee.len() => {
+            let exprs = ee.iter().collect::<Vec<_>>();
+            if unordered_op(*po) {
+                pe.iter().permutations(pe.len()).any(|pats| match_each(&pats, &exprs, vars, bindings, k))
+            } else {
+                match_each(&pe.iter().collect::<Vec<_>>(), &exprs, vars, bindings, k)
             }
         }
+        (Expr::Quant { kind: pk, name: pn, body: pb }, Expr::Quant { kind: ek, name: en, body: eb }) if pk == ek && pn == en => match_pattern(pb, eb, vars, bindings, k),
+        _ => false,
     }
-    (expr, false)
 }
 
-/// Helper function for `reduce_pattern()` and `reduce_pattern_set()`; given an
-/// expression `e` and a slice of (`pattern`, `replace`) pairs, get a vector of
-/// (`new_pattern`, `new_replace`, `pattern_vars`), where:
-///
-///   * `new_pattern` is the old `pattern` with all free variables in `e` renamed to fresh variables
-///   * `new_replace` is the old `replace` with the renames in `new_pattern`
-///   * `pattern_vars` is the set of free variables in `new_pattern`
-fn freevarsify_pattern(e: &Expr, patterns: &[(Expr, Expr)]) -> Vec<(Expr, Expr, HashSet<String>)> {
-    let e_free = free_vars(e);
-
-    // Find all free variables in the patterns and map them to generated names free for e
-    patterns
-        .iter()
-        .map(|(pattern, replace)| {
-            let mut pattern = pattern.clone();
-            let mut replace = replace.clone();
-            let free_pattern = free_vars(&pattern);
-
-            // Make sure our replacement doesn't have any new vars
-            let free_replace = free_vars(&replace);
-            assert!(free_replace.is_subset(&free_pattern));
-
-            // Replace all the free vars in the pattern with a known fresh variable in e
-            let mut pattern_vars = HashSet::new();
-            for free_var in free_pattern {
-                let new_sym = gen_var(&*free_var, &e_free);
-                pattern = subst(pattern, &*free_var, Expr::var(&*new_sym));
-                replace = subst(replace, &*free_var, Expr::var(&*new_sym));
-                pattern_vars.insert(new_sym);
-            }
+/// Helper function for `match_pattern()`; match each of `pats` against the
+/// expression at the same position in `exprs`
+fn match_each<'a>(pats: &[&'a Expr], exprs: &[&'a Expr], vars: &BTreeSet<String>, bindings: &mut Bindings<'a>, k: &mut dyn FnMut(&mut Bindings<'a>) -> bool) -> bool {
+    match (pats.split_first(), exprs.split_first()) {
+        (Some((pat, pats)), Some((expr, exprs))) => match_pattern(pat, expr, vars, bindings, &mut |bindings| match_each(pats, exprs, vars, bindings, k)),
+        _ => k(bindings),
+    }
+}
 
-            (pattern, replace, pattern_vars)
-        })
-        .collect::<Vec<_>>()
+/// Replace the pattern variables in `replace` with their bindings from `match_pattern()`.
+/// `PatternIndex::new` rejects patterns that bind variables, so there's nothing to capture.
+fn instantiate(replace: &Expr, bindings: &Bindings) -> Expr {
+    match replace {
+        Expr::Var { name } => bindings.get(name.as_str()).map_or_else(|| replace.clone(), |e| (*e).clone()),
+        Expr::Contra | Expr::Taut => replace.clone(),
+        Expr::Apply { func, args } => Expr::Apply { func: Box::new(instantiate(func, bindings)), args: args.iter().map(|arg| instantiate(arg, bindings)).collect() },
+        Expr::Not { operand } => Expr::Not { operand: Box::new(instantiate(operand, bindings)) },
+        Expr::Impl { left, right } => Expr::Impl { left: Box::new(instantiate(left, bindings)), right: Box::new(instantiate(right, bindings)) },
+        Expr::Assoc { op, exprs } => Expr::Assoc { op: *op, exprs: exprs.iter().map(|e| instantiate(e, bindings)).collect() },
+        Expr::Quant { kind, name, body } => Expr::Quant { kind: *kind, name: name.clone(), body: Box::new(instantiate(body, bindings)) },
+    }
 }
 
 #[cfg(test)]
 mod tests {
     use super::*;
 
-    use crate::expr::Op;
-
     #[test]
-    fn test_permute_ops() {
+    fn test_reduce_pattern() {
         use crate::parser::parse_unwrap as p;
 
-        // A & B
-        // B & A
-        let p1 = permute_ops(p("A & B"));
-        // (A & B) & (C & D)
-        // (B & A) & (C & D)
-        // (A & B) & (D & C)
-        // (B & A) & (D & C)
-        // (C & D) & (A & B)
-        // (C & D) & (B & A)
-        // (D & C) & (A & B)
-        // (D & C) & (B & A)
-        let p2 = permute_ops(p("(A & B) & (C & D)"));
-        assert_eq!(p1.len(), 2);
-        println!("{} {}", p1[0], p1[1]);
-        assert_eq!(p2.len(), 8);
-        println!("{} {} {} {} {} {} {} {}", p2[0], p2[1], p2[2], p2[3], p2[4], p2[5], p2[6], p2[7]);
+        // DeMorgan's for and/or that have only two parameters
+        let rule = RewriteRule::from_patterns(&[("~(phi & psi)", "~phi | ~psi"), ("~(phi | psi)", "~phi & ~psi")]);
+        assert_eq!(rule.reduce(p("some_expr")), p("some_expr"));
+        assert_eq!(rule.reduce(p("~(A & ~(B | phi))")), p("~A | (~~B | ~~phi)"));
+        // repeated pattern variables must match the same subexpression
+        let rule = RewriteRule::from_patterns(&[("phi & ~phi", "_|_")]);
+        assert_eq!(rule.reduce(p("A & ~A")), p("_|_"));
+        assert_eq!(rule.reduce(p("(forall x, P(x)) & ~(forall y, P(y))")), p("_|_"));
+        assert_eq!(rule.reduce(p("A & ~B")), p("A & ~B"));
+        // operands of commutative operators match in any order, including nested ones
+        let rule = RewriteRule::from_patterns(&[("phi & (phi | psi)", "phi")]);
+        assert_eq!(rule.reductions.len(), 1);
+        assert_eq!(rule.reduce(p("(B | A) & A")), p("A"));
+        assert_eq!(rule.reduce(p("(B | C) & A")), p("(B | C) & A"));
+        let rule = RewriteRule::from_patterns(&[("phi -> psi", "~phi | psi")]);
+        assert_eq!(rule.reduce(p("A -> B")), p("~A | B"));
     }
 
     #[test]
-    fn test_reduce_pattern() {
-        // DeMorgan's for and/or that have only two parameters
-
-        // ~(phi & psi) ==> ~phi | ~psi
-        let pattern1 = !Expr::assoc(Op::And, &[Expr::var("phi"), Expr::var("psi")]);
-        let replace1 = Expr::assoc(Op::Or, &[!Expr::var("phi"), !Expr::var("psi")]);
-
-        // ~(phi | psi) ==> ~phi & ~psi
-        let pattern2 = !Expr::assoc(Op::Or, &[Expr::var("phi"), Expr::var("psi")]);
-        let replace2 = Expr::assoc(Op::And, &[!Expr::var("phi"), !Expr::var("psi")]);
-
-        let patterns = vec![(pattern1, replace1), (pattern2, replace2)];
-        reduce_pattern(Expr::var("some_expr"), &patterns);
+    #[should_panic]
+    fn test_quantified_pattern() {
+        RewriteRule::from_patterns(&[("forall x, phi", "phi")]);
     }
 }
@@ -0,0 +1,198 @@
+/*!
+An optional, bounded cache of rule check results, for embedders that check the same steps over and
+over: re-rendering, re-checking unchanged lines, or many submissions that share steps.
+
+Entries are keyed by the rule and the expressions of the conclusion and the cited lines, never by
+line references, so editing a proof can't make an entry stale; a changed line just looks up a
+different key. Checks that cite subproofs depend on more of the proof than that, so they're never
+cached, and neither are errors that mention line references, since those only make sense in the proof
+they came from.
+
+The cache is off by default. Once [`set_capacity`](set_capacity) turns it on, it keeps that many
+results, forgetting the least recently used first. Hits and misses are counted by
+[`metrics`](crate::metrics) as `Counter::RuleCacheHits` and `Counter::RuleCacheMisses`.
+*/
+
+use crate::expr::Expr;
+use crate::metrics::{self, Counter};
+use crate::proofs::{PjRef, Proof};
+use crate::rules::{ProofCheckError, Rule, RuleM, RuleT};
+
+use std::collections::{BTreeMap, BTreeSet, HashMap};
+use std::hash::Hash;
+use std::sync::atomic::{AtomicUsize, Ordering};
+use std::sync::Mutex;
+
+/// Copy of the cache's capacity, so that checks don't take the lock while it's off
+static CAPACITY: AtomicUsize = AtomicUsize::new(0);
+
+#[derive(Clone, PartialEq, Eq, Hash)]
+struct Key {
+    rule: &'static str,
+    deps: Vec<Expr>,
+    conclusion: Expr,
+}
+
+/// A check result with no references to the proof it came from
+type Outcome = Result<(), ProofCheckError<(), ()>>;
+
+/// A map that forgets its least recently used entries beyond its capacity
+struct Lru<K, V> {
+    capacity: usize,
+    /// Each value, and when it was last used
+    entries: HashMap<K, (V, u64)>,
+    /// The keys of `entries` by when they were last used
+    by_use: BTreeMap<u64, K>,
+    clock: u64,
+}
+
+impl<K: Clone + Eq + Hash, V> Lru<K, V> {
+    fn new(capacity: usize) -> Self {
+        Lru { capacity, entries: HashMap::new(), by_use: BTreeMap::new(), clock: 0 }
+    }
+    fn get(&mut self, key: &K) -> Option<&V> {
+        let (value, last_use) = self.entries.get_mut(key)?;
+        self.clock += 1;
+        let key = self.by_use.remove(last_use).expect("Lru::get: entry missing from by_use");
+        *last_use = self.clock;
+        self.by_use.insert(self.clock, key);
+        Some(&*value)
+    }
+    fn insert(&mut self, key: K, value: V) {
+        self.clock += 1;
+        if let Some((_, last_use)) = self.entries.insert(key.clone(), (value, self.clock)) {
+            self.by_use.remove(&last_use);
+        }
+        self.by_use.insert(self.clock, key);
+        self.evict();
+    }
+    fn set_capacity(&mut self, capacity: usize) {
+        self.capacity = capacity;
+        self.evict();
+    }
+    fn evict(&mut self) {
+        while self.entries.len() > self.capacity {
+            let oldest = *self.by_use.keys().next().expect("Lru::evict: by_use is empty");
+            if let Some(key) = self.by_use.remove(&oldest) {
+                self.entries.remove(&key);
+            }
+        }
+    }
+}
+
+lazy_static! {
+    static ref CACHE: Mutex<Lru<Key, Outcome>> = Mutex::new(Lru::new(0));
+}
+
+/// Set the number of results to keep. Zero, the default, turns the cache off and empties it.
+pub fn set_capacity(capacity: usize) {
+    let mut cache = CACHE.lock().unwrap_or_else(|e| e.into_inner());
+    cache.set_capacity(capacity);
+    CAPACITY.store(capacity, Ordering::Relaxed);
+}
+
+pub fn capacity() -> usize {
+    CAPACITY.load(Ordering::Relaxed)
+}
+
+/// `e` with different reference types, or `None` if it mentions any references
+fn retype<R, S, R2: Ord, S2: Ord>(e: &ProofCheckError<R, S>) -> Option<ProofCheckError<R2, S2>> {
+    use ProofCheckError::*;
+    match e {
+        LineDoesNotExist(_) | SubproofDoesNotExist(_) | ReferencesLaterLine(_, _) | IncorrectDepCount(_, _) | IncorrectSubDepCount(_, _) => None,
+        DepOfWrongForm(dep, placeholder) => Some(DepOfWrongForm(dep.clone(), placeholder.clone())),
+        ConclusionOfWrongForm(placeholder) => Some(ConclusionOfWrongForm(placeholder.clone())),
+        DoesNotOccur(needle, haystack) => Some(DoesNotOccur(needle.clone(), haystack.clone())),
+        DepDoesNotExist(expected, approximate) => Some(DepDoesNotExist(expected.clone(), *approximate)),
+        OneOf(errors) => errors.iter().map(retype::<R, S, R2, S2>).collect::<Option<BTreeSet<_>>>().map(OneOf),
+        Other(message) => Some(Other(message.clone())),
+    }
+}
+
+/// Check a step like `RuleT::check`, answering from the cache and adding to it while it's on
+pub fn check<P: Proof>(rule: Rule, p: &P, conclusion: Expr, deps: Vec<PjRef<P>>, sdeps: Vec<P::SubproofReference>) -> Result<(), ProofCheckError<PjRef<P>, P::SubproofReference>> {
+    if capacity() == 0 {
+        return rule.check(p, conclusion, deps, sdeps);
+    }
+    check_with(&CACHE, rule, p, conclusion, deps, sdeps)
+}
+
+/// Helper function for `check()`, using `cache`, which is off while its capacity is zero
+fn check_with<P: Proof>(cache: &Mutex<Lru<Key, Outcome>>, rule: Rule, p: &P, conclusion: Expr, deps: Vec<PjRef<P>>, sdeps: Vec<P::SubproofReference>) -> Result<(), ProofCheckError<PjRef<P>, P::SubproofReference>> {
+    if !sdeps.is_empty() || cache.lock().unwrap_or_else(|e| e.into_inner()).capacity == 0 {
+        return rule.check(p, conclusion, deps, sdeps);
+    }
+    let dep_exprs = match deps.iter().map(|dep| p.lookup_expr(dep)).collect::<Option<Vec<_>>>() {
+        Some(dep_exprs) => dep_exprs,
+        // leave reporting the missing line to the rule
+        None => return rule.check(p, conclusion, deps, sdeps),
+    };
+    let key = Key { rule: RuleM::to_serialized_name(rule), deps: dep_exprs, conclusion: conclusion.clone() };
+    let cached = cache.lock().unwrap_or_else(|e| e.into_inner()).get(&key).map(|outcome| match outcome {
+        Ok(()) => Ok(()),
+        Err(e) => Err(retype(e).expect("rule_cache::check: cached errors have no references")),
+    });
+    if let Some(ret) = cached {
+        metrics::count(Counter::RuleCacheHits, 1);
+        return ret;
+    }
+    metrics::count(Counter::RuleCacheMisses, 1);
+    let ret = rule.check(p, conclusion, deps, sdeps);
+    let outcome = match &ret {
+        Ok(()) => Some(Ok(())),
+        Err(e) => retype(e).map(Err),
+    };
+    if let Some(outcome) = outcome {
+        cache.lock().unwrap_or_else(|e| e.into_inner()).insert(key, outcome);
+    }
+    ret
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    use crate::parser::parse_unwrap as p;
+    use crate::proofs::pooledproof::PooledProof;
+
+    use frunk_core::coproduct::Coproduct;
+    use frunk_core::Hlist;
+
+    #[test]
+    fn test_lru() {
+        let mut lru = Lru::new(2);
+        lru.insert("a", 1);
+        lru.insert("b", 2);
+        assert_eq!(lru.get(&"a"), Some(&1));
+        // "b" is now the least recently used
+        lru.insert("c", 3);
+        assert_eq!(lru.get(&"b"), None);
+        assert_eq!(lru.get(&"a"), Some(&1));
+        lru.insert("c", 4);
+        assert_eq!(lru.get(&"c"), Some(&4));
+        lru.set_capacity(1);
+        assert_eq!(lru.get(&"a"), None);
+        assert_eq!(lru.entries.len(), 1);
+        assert_eq!(lru.by_use.len(), 1);
+    }
+
+    #[test]
+    fn test_check() {
+        // a cache of its own, since other tests check steps against the global one
+        let cache = Mutex::new(Lru::new(100));
+        let mut prf = PooledProof::<Hlist![Expr]>::new();
+        let premise: PjRef<PooledProof<Hlist![Expr]>> = Coproduct::inject(prf.add_premise(p("A & B")));
+        let check = |cache: &Mutex<Lru<Key, Outcome>>, conclusion| check_with(cache, RuleM::AndElim, &prf, p(conclusion), vec![premise], vec![]);
+        let key = |conclusion| Key { rule: RuleM::to_serialized_name(RuleM::AndElim), deps: vec![p("A & B")], conclusion: p(conclusion) };
+        for _ in 0..2 {
+            assert!(check(&cache, "A").is_ok());
+            assert!(check(&cache, "C").is_err());
+            let cache = cache.lock().unwrap_or_else(|e| e.into_inner());
+            assert!(cache.entries.contains_key(&key("A")));
+            assert!(cache.entries.contains_key(&key("C")));
+        }
+        let off = Mutex::new(Lru::new(0));
+        assert!(check(&off, "A").is_ok());
+        assert!(off.lock().unwrap_or_else(|e| e.into_inner()).entries.is_empty());
+    }
+}
@@ -54,17 +54,22 @@ Adding the tests and implementing the rule can be interleaved; it's convenient t
     - if default metadata doesn't apply to all rules of the type, add an empty match block (e.g. `PrepositionalInference`)
 */
 
+use crate::egraph::EGraph;
+use crate::egraph::Saturation;
 use crate::equivs;
 use crate::expr::Constraint;
 use crate::expr::Expr;
 use crate::expr::Op;
 use crate::expr::QuantKind;
+use crate::hashcons::ExprArena;
+use crate::hashcons::ExprId;
 use crate::proofs::PjRef;
 use crate::proofs::Proof;
 use crate::rewrite_rules::RewriteRule;
+use crate::sat;
+use crate::truth_table::TruthTable;
 
 use std::collections::BTreeSet;
-use std::collections::HashMap;
 use std::collections::HashSet;
 use std::string::ToString;
 
@@ -711,56 +716,48 @@ impl RuleT for PrepositionalInference {
                         }
                         let prems = deps.into_iter().map(|r| p.lookup_expr_or_die(&r)).collect::<Result<Vec<Expr>, _>>()?;
                         let sproofs = sdeps.into_iter().map(|r| p.lookup_subproof_or_die(&r)).collect::<Result<Vec<_>, _>>()?;
-                        let mut slab = HashMap::new();
-                        let mut counter = 0;
-                        let next: &mut dyn FnMut() -> _ = &mut || {
-                            counter += 1;
-                            counter
-                        };
+                        // nodes are interned so that each distinct subexpression is hashed once, rather than on every edge
+                        let mut arena = ExprArena::new();
                         let mut g = DiGraphMap::new();
                         for prem in prems.iter() {
                             match prem {
                                 Expr::Assoc { op, ref exprs } if &oper == op => {
-                                    for e1 in exprs.iter() {
-                                        for e2 in exprs.iter() {
-                                            slab.entry(e1.clone()).or_insert_with(|| next());
-                                            slab.entry(e2.clone()).or_insert_with(|| next());
-                                            g.add_edge(slab[e1], slab[e2], ());
+                                    let ids = exprs.iter().map(|e| arena.intern_expr(e)).collect::<Vec<_>>();
+                                    for &i1 in ids.iter() {
+                                        for &i2 in ids.iter() {
+                                            g.add_edge(i1, i2, ());
                                         }
                                     }
                                 }
                                 Expr::Impl { ref left, ref right } => {
-                                    slab.entry(*left.clone()).or_insert_with(|| next());
-                                    slab.entry(*right.clone()).or_insert_with(|| next());
-                                    g.add_edge(slab[left], slab[right], ());
+                                    let (l, r) = (arena.intern_expr(left), arena.intern_expr(right));
+                                    g.add_edge(l, r, ());
                                 }
                                 _ => return Err(OneOf(btreeset![DepOfWrongForm(prem.clone(), Expr::assocplaceholder(oper)), DepOfWrongForm(prem.clone(), Expr::impl_place_holder()),])),
                             }
                         }
                         for sproof in sproofs.iter() {
                             assert_eq!(sproof.premises().len(), 1);
-                            let prem = sproof.lookup_premise_or_die(&sproof.premises()[0])?;
-                            slab.entry(prem.clone()).or_insert_with(|| next());
+                            let prem = arena.intern_expr(&sproof.lookup_premise_or_die(&sproof.premises()[0])?);
                             for r in sproof.exprs() {
-                                let e = sproof.lookup_expr_or_die(&r)?.clone();
-                                slab.entry(e.clone()).or_insert_with(|| next());
-                                g.add_edge(slab[&prem], slab[&e], ());
+                                let e = arena.intern_expr(&sproof.lookup_expr_or_die(&r)?);
+                                g.add_edge(prem, e, ());
                             }
                         }
-                        let rslab = slab.into_iter().map(|(k, v)| (v, k)).collect::<HashMap<_, _>>();
-                        let sccs = tarjan_scc(&g).iter().map(|x| x.iter().map(|i| rslab[i].clone()).collect()).collect::<Vec<HashSet<_>>>();
-                        println!("sccs: {:?}", sccs);
-                        if sccs.iter().any(|s| exprs.iter().all(|e| s.contains(e))) {
+                        let ids = exprs.iter().map(|e| arena.intern_expr(e)).collect::<Vec<_>>();
+                        let sccs = tarjan_scc(&g).into_iter().map(|x| x.into_iter().collect()).collect::<Vec<HashSet<ExprId>>>();
+                        if sccs.iter().any(|s| ids.iter().all(|i| s.contains(i))) {
                             return Ok(());
                         } else {
                             let mut errstring = "Not all elements of the conclusion are mutually implied by the premises.".to_string();
-                            if let Some(e) = exprs.iter().find(|e| !sccs.iter().any(|s| s.contains(e))) {
+                            let conc = exprs.iter().zip(ids.iter());
+                            if let Some((e, _)) = conc.clone().find(|(_, i)| !sccs.iter().any(|s| s.contains(i))) {
                                 errstring += &format!("\nThe expression {} occurs in the conclusion, but not in any of the premises.", e);
                             } else {
-                                exprs.iter().any(|e1| {
-                                    exprs.iter().any(|e2| {
+                                conc.clone().any(|(e1, i1)| {
+                                    conc.clone().any(|(e2, i2)| {
                                         for i in 0..sccs.len() {
-                                            if sccs[i].contains(e2) && !sccs[i..].iter().any(|s| s.contains(e1)) {
+                                            if sccs[i].contains(i2) && !sccs[i..].iter().any(|s| s.contains(i1)) {
                                                 errstring += &format!("\nThe expression {} is unreachable from {} by the premises.", e2, e1);
                                                 return true;
                                             }
@@ -868,7 +865,7 @@ impl RuleT for PredicateInference {
             //println!("gvc reachable {:?}", reachable.iter().map(|x| sproof.lookup_expr(&x)).collect::<Vec<_>>());
             let outside = reachable.difference(&contained);
             //println!("gvc outside {:?}", outside.clone().map(|x| sproof.lookup_expr(&x)).collect::<Vec<_>>());
-            outside.filter_map(|x| sproof.lookup_expr(&x)).find(|e| crate::expr::free_vars(e).contains(var))
+            outside.filter_map(|x| sproof.lookup_expr(&x)).find(|e| crate::expr::occurs_free(e, var))
         }
         match self {
             ForallIntro => {
@@ -876,7 +873,6 @@ impl RuleT for PredicateInference {
                 if let Expr::Quant { kind: QuantKind::Forall, name, body } = &conclusion {
                     for (r, expr) in sproof.exprs().into_iter().map(|r| sproof.lookup_expr_or_die(&r).map(|e| (r, e))).collect::<Result<Vec<_>, _>>()? {
                         if let Ok(Expr::Var { name: constant }) = unifies_wrt_var::<P>(&body, &expr, &name) {
-                            println!("ForallIntro constant {:?}", constant);
                             if let Some(dangling) = generalizable_variable_counterexample(&sproof, r.clone(), &constant) {
                                 return Err(Other(format!("The constant {} occurs in dependency {} that's outside the subproof.", constant, dangling)));
                             } else {
@@ -950,11 +946,10 @@ impl RuleT for PredicateInference {
                 };
                 for (r, expr) in sproof.exprs().into_iter().map(|r| sproof.lookup_expr_or_die(&r).map(|e| (r, e))).collect::<Result<Vec<_>, _>>()? {
                     if expr == conclusion {
-                        println!("ExistsElim conclusion {:?} skolemname {:?}", conclusion, skolemname);
                         if let Some(dangling) = generalizable_variable_counterexample(&sproof, r, &skolemname) {
                             return Err(Other(format!("The skolem constant {} occurs in dependency {} that's outside the subproof.", skolemname, dangling)));
                         }
-                        if crate::expr::free_vars(&conclusion).contains(&skolemname) {
+                        if crate::expr::occurs_free(&conclusion, &skolemname) {
                             return Err(Other(format!("The skolem constant {} escapes to the conclusion {}.", skolemname, conclusion)));
                         }
                         return Ok(());
@@ -988,22 +983,24 @@ fn check_by_rewrite_rule_confl<P: Proof>(p: &P, deps: Vec<PjRef<P>>, conclusion:
     check_by_normalize_first_expr(p, deps, conclusion, commutative, |e| rule.reduce(e))
 }
 
+/// Upper bound on the e-graph size for `check_by_rewrite_rule_non_confl`, far more than any hand-written line needs
+const REWRITE_NODE_BUDGET: usize = 10_000;
+
 fn check_by_rewrite_rule_non_confl<P: Proof>(p: &P, deps: Vec<PjRef<P>>, conclusion: Expr, commutative: bool, rule: &RewriteRule) -> Result<(), ProofCheckError<PjRef<P>, P::SubproofReference>> {
     let premise = p.lookup_expr_or_die(&deps[0])?;
-    let premise_set = rule.reduce_set(premise.clone());
-    let conclusion_set = rule.reduce_set(conclusion.clone());
-    let (premise_set, conclusion_set) = if commutative {
-        let sort_ops = |set: HashSet<Expr>| set.into_iter().map(Expr::sort_commutative_ops).collect();
-        (sort_ops(premise_set), sort_ops(conclusion_set))
-    } else {
-        (premise_set, conclusion_set)
-    };
-    // The premise and conclusion are equal if the set intersection is nonempty
-    let is_eq = premise_set.intersection(&conclusion_set).next().is_some();
-    if is_eq {
-        Ok(())
-    } else {
-        Err(ProofCheckError::Other(format!("{} and {} are not equal.", premise, conclusion)))
+    // The rules are equivalences, so if a truth table tells the premise and conclusion apart, there's no need to search
+    if let Some(table) = TruthTable::new(&Expr::assoc(Op::Bicon, &[premise.clone(), conclusion.clone()])) {
+        if !table.is_tautology() {
+            return Err(ProofCheckError::Other(format!("{} and {} are not equal.", premise, conclusion)));
+        }
+    }
+    // The premise and conclusion are equal if saturating with the rule puts them in the same e-class
+    let mut egraph = EGraph::new(commutative);
+    let (premise_class, conclusion_class) = (egraph.add_expr(&premise), egraph.add_expr(&conclusion));
+    match egraph.saturate(&rule.reductions, REWRITE_NODE_BUDGET, |g| g.equiv(premise_class, conclusion_class)) {
+        Saturation::Goal => Ok(()),
+        Saturation::Saturated => Err(ProofCheckError::Other(format!("{} and {} are not equal.", premise, conclusion))),
+        Saturation::OutOfBudget => Err(ProofCheckError::Other(format!("{} and {} could not be shown equal within {} expression nodes.", premise, conclusion, REWRITE_NODE_BUDGET))),
     }
 }
 
@@ -1358,38 +1355,28 @@ impl RuleT for AutomationRelatedRules {
                 }
             }
             AutomationRelatedRules::TautologicalConsequence => {
-                // Closure for making CNF conversion errors
-                let cnf_error = || ProofCheckError::Other("Failed converting to CNF; the propositions for this rule should not use quantifiers, arithmetic, or application.".to_string());
-
-                // Closure to convert expression into CNF and change to result type
-                let into_cnf = |expr: Expr| expr.into_cnf().ok_or_else(cnf_error);
-
-                // Convert the premises to a single expression by AND-ing them together
                 let premises = deps.into_iter().map(|dep| p.lookup_expr_or_die(&dep)).collect::<Result<Vec<Expr>, _>>()?;
-                let premise = Expr::Assoc { op: Op::And, exprs: premises };
-
-                // Create `varisat` formula of `~(P -> Q)`. If this is
-                // unsatisfiable, then we've proven `P -> Q`.
-                let sat = !(Expr::implies(premise, conclusion));
-                let (sat, vars) = into_cnf(sat)?.to_varisat();
-                let mut solver = varisat::Solver::new();
-                solver.add_formula(&sat);
 
-                // Does not panic on the default config
-                solver.solve().expect("varisat error");
-
-                // If unsatisfiable, we know `P -> Q`
-                match solver.model() {
-                    Some(model) => {
-                        // Satisfiable, so `P -> Q` is false. The counterexample is `model`.
-
-                        // Convert model to human-readable variable assignments
-                        // for an error message
+                // Small problems are decided by truth table, and the rest
+                // with this thread's SAT session, which keeps the encodings
+                // of premises cited by earlier lines
+                let implication = Expr::implies(Expr::assoc(Op::And, &premises), conclusion.clone());
+                let outcome = match TruthTable::new(&implication) {
+                    Some(table) => Some(table.find(false).map_or(Ok(()), Err)),
+                    None => sat::with_session(|session| session.entails(&premises, &conclusion)),
+                };
+                match outcome {
+                    None => Err(ProofCheckError::Other("Failed converting to CNF; the propositions for this rule should not use quantifiers, arithmetic, or application.".to_string())),
+                    Some(Ok(())) => Ok(()),
+                    Some(Err(model)) => {
+                        // The premises and the negated conclusion are satisfiable
+                        // together, so the counterexample is `model`. Convert it
+                        // to human-readable variable assignments for an error
+                        // message.
                         let model = model
                             .into_iter()
-                            .map(|lit| {
-                                let name = vars.get(&lit.var()).expect("taut con vars map error");
-                                let val = if lit.is_positive() { 'T' } else { 'F' };
+                            .map(|(name, is_positive)| {
+                                let val = if is_positive { 'T' } else { 'F' };
                                 format!("{} = {}", name, val)
                             })
                             .collect::<Vec<String>>()
@@ -1397,7 +1384,6 @@ impl RuleT for AutomationRelatedRules {
 
                         Err(ProofCheckError::Other(format!("Not true by tautological consequence; Counterexample: {}", model)))
                     }
-                    None => Ok(()),
                 }
             }
         }
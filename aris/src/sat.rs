@@ -0,0 +1,148 @@
+//! A SAT solver session shared by the tautological consequence checks made on a thread.
+//!
+//! Each expression is encoded into the solver once, with every one of its clauses guarded by an
+//! activation literal, so that the clauses only constrain anything while that literal is assumed.
+//! A check assumes the activation literals of its premises and of its negated conclusion, so lines
+//! that cite the same premises, and re-checks of unchanged lines after an edit elsewhere, reuse both
+//! the encodings and the clauses the solver learned along the way.
+//!
+//! Encodings are keyed by expression rather than by line, so editing a line just makes a new
+//! expression to encode, and nothing can go stale.
+
+use crate::expr::Expr;
+
+use std::cell::RefCell;
+use std::collections::{BTreeMap, HashMap, HashSet};
+
+use varisat::{ExtendFormula, Lit, Solver, Var};
+
+/// Number of encoded expressions after which a check starts over with an empty solver, so that a
+/// long-lived thread's solver doesn't grow without bound
+const MAX_ENCODED: usize = 4096;
+
+struct Encoded {
+    /// Assumed to enable the expression's clauses
+    activation: Lit,
+    /// The solver variables of the expression's own variables, without the auxiliary ones
+    vars: Vec<Var>,
+}
+
+pub struct SatSession {
+    solver: Solver<'static>,
+    /// Solver variables for the variables of the encoded expressions, shared between them
+    vars: HashMap<String, Var>,
+    names: HashMap<Var, String>,
+    encoded: HashMap<Expr, Encoded>,
+}
+
+thread_local! {
+    static SESSION: RefCell<SatSession> = RefCell::new(SatSession::new());
+}
+
+/// Run `f` with this thread's session
+pub fn with_session<A, F: FnOnce(&mut SatSession) -> A>(f: F) -> A {
+    SESSION.with(|session| f(&mut session.borrow_mut()))
+}
+
+impl SatSession {
+    fn new() -> Self {
+        SatSession { solver: Solver::new(), vars: HashMap::new(), names: HashMap::new(), encoded: HashMap::new() }
+    }
+    /// The activation literal of `expr`, encoding it first if it's new, or `None` if it isn't propositional
+    fn encode(&mut self, expr: &Expr) -> Option<Lit> {
+        if let Some(encoded) = self.encoded.get(expr) {
+            return Some(encoded.activation);
+        }
+        let (cnf, aux) = expr.clone().into_nnf()?.into_cnf_tseitin();
+        let (formula, names) = cnf.to_varisat();
+        let activation = Lit::from_var(self.solver.new_var(), true);
+        let mut vars = vec![];
+        let mut to_session = HashMap::new();
+        for (var, name) in names {
+            let session_var = if aux.contains(&name) {
+                // auxiliary variables are local to this encoding
+                self.solver.new_var()
+            } else {
+                let solver = &mut self.solver;
+                let session_var = *self.vars.entry(name.clone()).or_insert_with(|| solver.new_var());
+                self.names.insert(session_var, name);
+                vars.push(session_var);
+                session_var
+            };
+            to_session.insert(var, session_var);
+        }
+        for clause in formula.iter() {
+            let clause = std::iter::once(!activation).chain(clause.iter().map(|lit| Lit::from_var(to_session[&lit.var()], lit.is_positive()))).collect::<Vec<_>>();
+            self.solver.add_clause(&clause);
+        }
+        self.encoded.insert(expr.clone(), Encoded { activation, vars });
+        Some(activation)
+    }
+    /// Whether `premises` entail `conclusion`. If they don't, the error is a counterexample, the values
+    /// of their variables sorted by name. Returns `None` if any of them isn't propositional.
+    pub fn entails(&mut self, premises: &[Expr], conclusion: &Expr) -> Option<Result<(), Vec<(String, bool)>>> {
+        if self.encoded.len() + premises.len() + 1 > MAX_ENCODED {
+            *self = SatSession::new();
+        }
+        // the premises entail the conclusion if they're unsatisfiable together with its negation
+        let negated = !conclusion.clone();
+        let exprs = premises.iter().chain(std::iter::once(&negated)).collect::<Vec<_>>();
+        let mut assumptions = vec![];
+        for expr in exprs.iter() {
+            assumptions.push(self.encode(expr)?);
+        }
+        self.solver.assume(&assumptions);
+        // Does not panic on the default config
+        if !self.solver.solve().expect("varisat error") {
+            return Some(Ok(()));
+        }
+        let model = self.solver.model().expect("varisat error");
+        let relevant = exprs.iter().flat_map(|expr| self.encoded[*expr].vars.iter().copied()).collect::<HashSet<_>>();
+        let values = model.into_iter().filter(|lit| relevant.contains(&lit.var())).map(|lit| (self.names[&lit.var()].clone(), lit.is_positive())).collect::<BTreeMap<_, _>>();
+        Some(Err(values.into_iter().collect()))
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    use crate::expr::Op;
+    use crate::parser::parse_unwrap as p;
+    use crate::proofs::pooledproof::PooledProof;
+    use crate::proofs::{Justification, Proof};
+    use crate::rules::RuleM;
+    use crate::truth_table::MAX_ATOMS;
+
+    use frunk_core::coproduct::Coproduct;
+    use frunk_core::Hlist;
+
+    #[test]
+    fn test_entails() {
+        let mut session = SatSession::new();
+        let premises = vec![p("(A & B) | (C & D)"), p("~C")];
+        assert_eq!(session.entails(&premises, &p("A")), Some(Ok(())));
+        assert_eq!(session.entails(&premises, &p("B & ~C")), Some(Ok(())));
+        // the premises were encoded once, and only the negated conclusions were added
+        assert_eq!(session.encoded.len(), 4);
+        assert_eq!(session.entails(&premises, &p("D")), Some(Err(vec![("A".into(), true), ("B".into(), true), ("C".into(), false), ("D".into(), false)])));
+        // premises of other checks don't constrain this one
+        assert_eq!(session.entails(&[p("A")], &p("C")), Some(Err(vec![("A".into(), true), ("C".into(), false)])));
+        assert_eq!(session.entails(&[p("A")], &p("forall x, A")), None);
+    }
+
+    #[test]
+    fn test_reverify_reuses_session() {
+        // too many variables for a truth table, so the check goes to this thread's session
+        let premise = Expr::assoc(Op::And, &(0..=MAX_ATOMS).map(|i| Expr::var(&format!("A{}", i))).collect::<Vec<_>>());
+        let mut prf = PooledProof::<Hlist![Expr]>::new();
+        let r = Coproduct::inject(prf.add_premise(premise.clone()));
+        let line = Coproduct::inject(prf.add_step(Justification(p("A0 & A1"), RuleM::TautologicalConsequence, vec![r], vec![])));
+        assert!(prf.verify_line(&line).is_ok());
+        let encoded = with_session(|session| session.encoded.len());
+        assert!(with_session(|session| session.encoded.contains_key(&premise)));
+        // checking the line again encodes nothing new
+        assert!(prf.verify_line(&line).is_ok());
+        assert_eq!(with_session(|session| session.encoded.len()), encoded);
+    }
+}
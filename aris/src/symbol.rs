@@ -0,0 +1,287 @@
+/*!
+Interned names for variables, predicates and binders.
+
+A [`Symbol`](Symbol) is a 32-bit index into a process-wide table of names, so copying, comparing
+and hashing one doesn't touch the heap. Each distinct name is stored once for the lifetime of the
+process. Interning takes a lock, but getting a symbol's name back doesn't, since the names are kept
+in an append-only table that's only written under that lock.
+
+[`FreshNames`](FreshNames) doesn't use the table at all, so names made up along the way are never
+interned.
+
+```
+use aris::symbol::{FreshNames, Symbol};
+
+let x = Symbol::intern("x");
+assert_eq!(x, Symbol::intern("x"));
+assert_eq!(x.as_str(), "x");
+
+let mut fresh = FreshNames::new(vec!["x", "x0"]);
+assert_eq!(fresh.fresh("x"), "x1");
+assert_eq!(fresh.fresh("x"), "x2");
+assert_eq!(fresh.fresh("y"), "y");
+assert_eq!(Symbol::lookup("x1"), None);
+```
+*/
+
+use std::cmp::Ordering;
+use std::collections::{HashMap, HashSet};
+use std::fmt;
+use std::iter::FromIterator;
+use std::ptr;
+use std::sync::atomic::{AtomicPtr, Ordering as AtomicOrdering};
+use std::sync::RwLock;
+
+/// An interned name
+#[derive(Clone, Copy, PartialEq, Eq, Hash, PartialOrd, Ord)]
+pub struct Symbol(u32);
+
+#[derive(Default)]
+struct Interner {
+    /// Number of names interned so far
+    len: u32,
+    ids: HashMap<&'static str, Symbol>,
+}
+
+/// A slot of `NAMES`, which points at a name once it's interned
+type Slot = AtomicPtr<&'static str>;
+
+lazy_static! {
+    static ref INTERNER: RwLock<Interner> = RwLock::new(Interner::default());
+    /// The name of each symbol, by number. Chunk `k` holds `2^k` slots, so that chunks never move once
+    /// allocated. Chunks and slots are only written while holding `INTERNER`'s write lock, and a slot is
+    /// filled before its symbol is returned from `Symbol::intern`, so any symbol's slot can be read
+    /// without the lock.
+    static ref NAMES: Vec<AtomicPtr<Slot>> = (0..32).map(|_| AtomicPtr::new(ptr::null_mut())).collect();
+}
+
+/// The chunk of `NAMES` holding the name of the symbol numbered `index`, and its position in the chunk
+fn slot_position(index: u32) -> (usize, usize) {
+    let n = index as u64 + 1;
+    let chunk = 63 - n.leading_zeros() as usize;
+    (chunk, (n - (1 << chunk)) as usize)
+}
+
+impl Symbol {
+    /// Get the symbol for a name, adding it to the table if it's new
+    pub fn intern(name: &str) -> Symbol {
+        if let Some(sym) = INTERNER.read().unwrap_or_else(|e| e.into_inner()).ids.get(name) {
+            return *sym;
+        }
+        let mut interner = INTERNER.write().unwrap_or_else(|e| e.into_inner());
+        // another thread may have added it between the two locks
+        if let Some(sym) = interner.ids.get(name) {
+            return *sym;
+        }
+        let sym = Symbol(interner.len);
+        let name: &'static str = Box::leak(name.to_owned().into_boxed_str());
+        let (chunk, offset) = slot_position(sym.0);
+        let mut slots = NAMES[chunk].load(AtomicOrdering::Acquire);
+        if slots.is_null() {
+            slots = Box::leak((0..1usize << chunk).map(|_| AtomicPtr::new(ptr::null_mut())).collect::<Box<[Slot]>>()).as_mut_ptr();
+            NAMES[chunk].store(slots, AtomicOrdering::Release);
+        }
+        // the chunk has `2^chunk` slots, and `offset` is less than that
+        unsafe { &*slots.add(offset) }.store(Box::leak(Box::new(name)), AtomicOrdering::Release);
+        interner.len += 1;
+        interner.ids.insert(name, sym);
+        sym
+    }
+    /// Get the symbol for a name if it has been interned, without adding it to the table
+    pub fn lookup(name: &str) -> Option<Symbol> {
+        INTERNER.read().unwrap_or_else(|e| e.into_inner()).ids.get(name).copied()
+    }
+    /// The name this symbol was interned from
+    pub fn as_str(self) -> &'static str {
+        let (chunk, offset) = slot_position(self.0);
+        let slots = NAMES[chunk].load(AtomicOrdering::Acquire);
+        // symbols are only made by `intern`, which fills in the slot first, so neither pointer is null
+        let name = unsafe { &*slots.add(offset) }.load(AtomicOrdering::Acquire);
+        unsafe { *name }
+    }
+}
+
+impl From<&str> for Symbol {
+    fn from(name: &str) -> Symbol {
+        Symbol::intern(name)
+    }
+}
+
+impl fmt::Display for Symbol {
+    fn fmt(&self, f: &mut fmt::Formatter) -> fmt::Result {
+        write!(f, "{}", self.as_str())
+    }
+}
+
+impl fmt::Debug for Symbol {
+    fn fmt(&self, f: &mut fmt::Formatter) -> fmt::Result {
+        write!(f, "{:?}", self.as_str())
+    }
+}
+
+/// A set of symbols, stored as a sorted vector.
+///
+/// Free variable sets are small, but the symbols in them can have any number, so this takes space
+/// proportional to the size of the set rather than to the size of the table. Membership is a binary
+/// search, and unions are a merge.
+#[derive(Clone, Default, PartialEq, Eq, Hash)]
+pub struct SymbolSet(Vec<Symbol>);
+
+impl SymbolSet {
+    pub fn new() -> Self {
+        Self::default()
+    }
+    pub fn is_empty(&self) -> bool {
+        self.0.is_empty()
+    }
+    pub fn len(&self) -> usize {
+        self.0.len()
+    }
+    pub fn contains(&self, sym: Symbol) -> bool {
+        self.0.binary_search(&sym).is_ok()
+    }
+    pub fn insert(&mut self, sym: Symbol) {
+        if let Err(i) = self.0.binary_search(&sym) {
+            self.0.insert(i, sym);
+        }
+    }
+    pub fn remove(&mut self, sym: Symbol) {
+        if let Ok(i) = self.0.binary_search(&sym) {
+            self.0.remove(i);
+        }
+    }
+    /// Add all the symbols in `other` to `self`
+    pub fn union_with(&mut self, other: &SymbolSet) {
+        if other.0.iter().all(|sym| self.contains(*sym)) {
+            return;
+        }
+        let mut merged = Vec::with_capacity(self.0.len() + other.0.len());
+        let (mut i, mut j) = (0, 0);
+        while i < self.0.len() && j < other.0.len() {
+            match self.0[i].cmp(&other.0[j]) {
+                Ordering::Less => {
+                    merged.push(self.0[i]);
+                    i += 1;
+                }
+                Ordering::Greater => {
+                    merged.push(other.0[j]);
+                    j += 1;
+                }
+                Ordering::Equal => {
+                    merged.push(self.0[i]);
+                    i += 1;
+                    j += 1;
+                }
+            }
+        }
+        merged.extend_from_slice(&self.0[i..]);
+        merged.extend_from_slice(&other.0[j..]);
+        self.0 = merged;
+    }
+    pub fn iter(&self) -> impl Iterator<Item = Symbol> + '_ {
+        self.0.iter().copied()
+    }
+}
+
+impl FromIterator<Symbol> for SymbolSet {
+    fn from_iter<I: IntoIterator<Item = Symbol>>(iter: I) -> Self {
+        let mut syms = iter.into_iter().collect::<Vec<_>>();
+        syms.sort_unstable();
+        syms.dedup();
+        SymbolSet(syms)
+    }
+}
+
+impl fmt::Debug for SymbolSet {
+    fn fmt(&self, f: &mut fmt::Formatter) -> fmt::Result {
+        f.debug_set().entries(self.iter()).finish()
+    }
+}
+
+/// A supply of names that are distinct from a set of names to avoid, and from each other.
+///
+/// Unlike `expr::gen_var`, which probes `prefix0`, `prefix1`, ... from the start on every call,
+/// this remembers where it left off for each prefix. It's local to one computation and never
+/// touches the symbol table, so the names it hands out aren't interned.
+#[derive(Clone, Debug, Default)]
+pub struct FreshNames {
+    /// Avoided names, including every name handed out by `fresh`
+    used: HashSet<String>,
+    next: HashMap<String, u64>,
+}
+
+impl FreshNames {
+    pub fn new<'a, I: IntoIterator<Item = &'a str>>(avoid: I) -> Self {
+        FreshNames { used: avoid.into_iter().map(str::to_owned).collect(), next: HashMap::new() }
+    }
+    /// Whether `name` is avoided, either initially or because it was already handed out
+    pub fn is_used(&self, name: &str) -> bool {
+        self.used.contains(name)
+    }
+    /// Avoid `name` in future calls to `fresh`
+    pub fn avoid(&mut self, name: &str) {
+        if !self.used.contains(name) {
+            self.used.insert(name.to_owned());
+        }
+    }
+    /// Get `prefix` if it's unused, otherwise the first unused name of the form `prefix` followed by
+    /// a number. The returned name is avoided from then on.
+    pub fn fresh(&mut self, prefix: &str) -> String {
+        if !self.is_used(prefix) {
+            self.used.insert(prefix.to_owned());
+            return prefix.to_owned();
+        }
+        let mut next = self.next.get(prefix).copied().unwrap_or(0);
+        let candidate = loop {
+            let candidate = format!("{}{}", prefix, next);
+            next += 1;
+            if !self.is_used(&candidate) {
+                break candidate;
+            }
+        };
+        self.next.insert(prefix.to_owned(), next);
+        self.used.insert(candidate.clone());
+        candidate
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_fresh_names() {
+        let mut fresh = FreshNames::new(vec!["A", "A0", "A1", "A2", "A3"]);
+        assert_eq!(fresh.fresh("B"), "B");
+        assert_eq!(fresh.fresh("B"), "B0");
+        assert_eq!(fresh.fresh("A"), "A4");
+        fresh.avoid("A5");
+        assert_eq!(fresh.fresh("A"), "A6");
+        assert!(fresh.is_used("A6"));
+        assert!(!fresh.is_used("C"));
+        // the names handed out aren't interned
+        assert_eq!(fresh.fresh("__fresh_test"), "__fresh_test");
+        assert_eq!(fresh.fresh("__fresh_test"), "__fresh_test0");
+        assert_eq!(Symbol::lookup("__fresh_test"), None);
+        assert_eq!(Symbol::lookup("__fresh_test0"), None);
+    }
+
+    #[test]
+    fn test_symbol_set() {
+        let s = Symbol::intern;
+        let mut set: SymbolSet = vec![s("x"), s("y")].into_iter().collect();
+        assert!(set.contains(s("x")) && set.contains(s("y")) && !set.contains(s("z")));
+        set.union_with(&vec![s("z")].into_iter().collect());
+        assert_eq!(set.iter().collect::<HashSet<_>>(), vec![s("x"), s("y"), s("z")].into_iter().collect());
+        for name in &["x", "y", "z"] {
+            set.remove(s(name));
+        }
+        assert!(set.is_empty());
+        assert_eq!(set, SymbolSet::new());
+        let set: SymbolSet = vec![s("z"), s("x"), s("z")].into_iter().collect();
+        assert_eq!(set.len(), 2);
+        let mut other: SymbolSet = vec![s("y"), s("x")].into_iter().collect();
+        other.union_with(&set);
+        assert_eq!(other, vec![s("x"), s("y"), s("z")].into_iter().collect());
+    }
+}
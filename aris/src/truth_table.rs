@@ -0,0 +1,244 @@
+/*!
+Bit-parallel evaluation of quantifier-free propositional expressions under every assignment of their
+variables.
+
+An expression is compiled once into a flat sequence of instructions, each computing one subexpression
+from the results of earlier ones, with repeated subexpressions computed once. Running the sequence on
+`u64` words evaluates 64 assignments at a time, so the whole truth table of an expression with `n`
+variables takes `2^n / 64` passes over the instructions, where [`Expr::eval`](crate::expr::Expr::eval)
+walks the tree `2^n` times.
+
+```
+use aris::parser::parse_unwrap as p;
+use aris::truth_table::TruthTable;
+
+assert!(TruthTable::new(&p("(A -> B) <-> (~B -> ~A)")).unwrap().is_tautology());
+let table = TruthTable::new(&p("A -> B")).unwrap();
+assert_eq!(table.find(false), Some(vec![("A".to_string(), true), ("B".to_string(), false)]));
+```
+*/
+
+use crate::expr::{Expr, Op};
+
+use std::collections::{BTreeSet, HashMap};
+
+/// Most variables an expression can have to be compiled, since its truth table has `2^MAX_ATOMS` rows
+pub const MAX_ATOMS: usize = 20;
+
+#[derive(Clone, Copy, Debug)]
+enum Instr {
+    Const(bool),
+    /// The variable with this index in `TruthTable::atoms`
+    Atom(usize),
+    Not(usize),
+    Impl(usize, usize),
+    /// An associative operator applied to the slots `operands[start..start + len]`
+    Assoc { op: Op, start: usize, len: usize },
+}
+
+/// A compiled expression. The result of each instruction goes in the slot numbered by its index, and
+/// only refers to earlier slots.
+#[derive(Clone, Debug)]
+pub struct TruthTable {
+    /// The variables, sorted by name
+    atoms: Vec<String>,
+    code: Vec<Instr>,
+    operands: Vec<usize>,
+    root: usize,
+}
+
+/// Add the variables of `expr` to `atoms`, or return `None` if it can't be compiled
+fn collect_atoms<'a>(expr: &'a Expr, atoms: &mut BTreeSet<&'a str>) -> Option<()> {
+    match expr {
+        Expr::Contra | Expr::Taut => {}
+        Expr::Var { name } => {
+            atoms.insert(name);
+        }
+        Expr::Not { operand } => collect_atoms(operand, atoms)?,
+        Expr::Impl { left, right } => {
+            collect_atoms(left, atoms)?;
+            collect_atoms(right, atoms)?;
+        }
+        Expr::Assoc { op: Op::And, exprs } | Expr::Assoc { op: Op::Or, exprs } | Expr::Assoc { op: Op::Bicon, exprs } => {
+            for e in exprs.iter() {
+                collect_atoms(e, atoms)?;
+            }
+        }
+        Expr::Assoc { .. } | Expr::Apply { .. } | Expr::Quant { .. } => return None,
+    }
+    Some(())
+}
+
+struct Compiler<'a> {
+    atoms: HashMap<&'a str, usize>,
+    /// The slot of each subexpression compiled so far
+    slots: HashMap<&'a Expr, usize>,
+    code: Vec<Instr>,
+    operands: Vec<usize>,
+}
+
+impl<'a> Compiler<'a> {
+    fn compile(&mut self, expr: &'a Expr) -> usize {
+        if let Some(slot) = self.slots.get(expr) {
+            return *slot;
+        }
+        let instr = match expr {
+            Expr::Contra => Instr::Const(false),
+            Expr::Taut => Instr::Const(true),
+            Expr::Var { name } => Instr::Atom(self.atoms[name.as_str()]),
+            Expr::Not { operand } => Instr::Not(self.compile(operand)),
+            Expr::Impl { left, right } => {
+                let left = self.compile(left);
+                let right = self.compile(right);
+                Instr::Impl(left, right)
+            }
+            Expr::Assoc { op, exprs } => {
+                let slots = exprs.iter().map(|e| self.compile(e)).collect::<Vec<_>>();
+                let start = self.operands.len();
+                self.operands.extend(slots);
+                Instr::Assoc { op: *op, start, len: exprs.len() }
+            }
+            Expr::Apply { .. } | Expr::Quant { .. } => unreachable!("TruthTable::new rejects these before compiling"),
+        };
+        self.code.push(instr);
+        self.slots.insert(expr, self.code.len() - 1);
+        self.code.len() - 1
+    }
+}
+
+/// The values of variable `i` in the 64 assignments of word `w`. Assignment `64 * w + j`, in bit `j`,
+/// gives each variable `i` the value of bit `i` of that number.
+fn atom_word(i: usize, w: usize) -> u64 {
+    const PATTERNS: [u64; 6] = [0xAAAA_AAAA_AAAA_AAAA, 0xCCCC_CCCC_CCCC_CCCC, 0xF0F0_F0F0_F0F0_F0F0, 0xFF00_FF00_FF00_FF00, 0xFFFF_0000_FFFF_0000, 0xFFFF_FFFF_0000_0000];
+    if i < 6 {
+        PATTERNS[i]
+    } else if (w >> (i - 6)) & 1 == 1 {
+        !0
+    } else {
+        0
+    }
+}
+
+impl TruthTable {
+    /// Compile `expr`, or return `None` if it has quantifiers, applications, arithmetic, or more than
+    /// `MAX_ATOMS` variables
+    pub fn new(expr: &Expr) -> Option<Self> {
+        let mut atoms = BTreeSet::new();
+        collect_atoms(expr, &mut atoms)?;
+        if atoms.len() > MAX_ATOMS {
+            return None;
+        }
+        let mut compiler = Compiler { atoms: atoms.iter().enumerate().map(|(i, name)| (*name, i)).collect(), slots: HashMap::new(), code: vec![], operands: vec![] };
+        let root = compiler.compile(expr);
+        Some(TruthTable { atoms: atoms.into_iter().map(str::to_owned).collect(), code: compiler.code, operands: compiler.operands, root })
+    }
+    /// The variables of the expression, sorted by name
+    pub fn atoms(&self) -> &[String] {
+        &self.atoms
+    }
+    /// Number of words in the truth table
+    fn words(&self) -> usize {
+        1 << self.atoms.len().saturating_sub(6)
+    }
+    /// The bits of a word that are assignments, which is all of them unless there are fewer than 6 variables
+    fn valid(&self) -> u64 {
+        if self.atoms.len() >= 6 {
+            !0
+        } else {
+            (1u64 << (1 << self.atoms.len())) - 1
+        }
+    }
+    /// Evaluate the 64 assignments of word `w`, using `slots` as scratch space
+    fn eval_word(&self, w: usize, slots: &mut Vec<u64>) -> u64 {
+        slots.clear();
+        for instr in self.code.iter() {
+            let value = match *instr {
+                Instr::Const(value) => {
+                    if value {
+                        !0
+                    } else {
+                        0
+                    }
+                }
+                Instr::Atom(i) => atom_word(i, w),
+                Instr::Not(x) => !slots[x],
+                Instr::Impl(x, y) => !slots[x] | slots[y],
+                Instr::Assoc { op, start, len } => {
+                    let operands = self.operands[start..start + len].iter().map(|x| slots[*x]);
+                    match op {
+                        Op::And => operands.fold(!0, |acc, x| acc & x),
+                        Op::Or => operands.fold(0, |acc, x| acc | x),
+                        // like `Expr::eval`, a chain of biconditionals is folded from the left, starting from true
+                        Op::Bicon => operands.fold(!0, |acc, x| !(acc ^ x)),
+                        Op::Equiv | Op::Add | Op::Mult => unreachable!("TruthTable::new rejects these before compiling"),
+                    }
+                }
+            };
+            slots.push(value);
+        }
+        slots[self.root]
+    }
+    /// An assignment giving the expression the value `value`, as the values of its variables sorted by
+    /// name, or `None` if there isn't one. This is the first such assignment when the variables are
+    /// read as the bits of a binary number, lowest first.
+    pub fn find(&self, value: bool) -> Option<Vec<(String, bool)>> {
+        let mut slots = Vec::with_capacity(self.code.len());
+        for w in 0..self.words() {
+            let mut bits = self.eval_word(w, &mut slots);
+            if !value {
+                bits = !bits;
+            }
+            bits &= self.valid();
+            if bits != 0 {
+                let row = 64 * w + bits.trailing_zeros() as usize;
+                return Some(self.atoms.iter().enumerate().map(|(i, name)| (name.clone(), (row >> i) & 1 == 1)).collect());
+            }
+        }
+        None
+    }
+    /// Whether the expression is true under every assignment
+    pub fn is_tautology(&self) -> bool {
+        self.find(false).is_none()
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    use crate::expr::expressions_for_depth;
+    use crate::parser::parse_unwrap as p;
+
+    #[test]
+    fn test_agrees_with_eval() {
+        let vars: BTreeSet<String> = ["a", "b"].iter().map(|s| s.to_string()).collect();
+        let mut slots = vec![];
+        for expr in expressions_for_depth(2, 2, vars) {
+            let table = match TruthTable::new(&expr) {
+                Some(table) => table,
+                None => continue,
+            };
+            let bits = table.eval_word(0, &mut slots);
+            for row in 0..(1 << table.atoms().len()) {
+                let env = table.atoms().iter().enumerate().map(|(i, name)| (name.clone(), vec![(row >> i) & 1 == 1])).collect::<HashMap<_, _>>();
+                assert_eq!((bits >> row) & 1 == 1, expr.eval(&env), "{} at row {}", expr, row);
+            }
+        }
+    }
+
+    #[test]
+    fn test_find() {
+        // 8 variables, so 4 words, and only the last assignment makes them all true
+        let all = p("A0 & A1 & A2 & A3 & A4 & A5 & A6 & A7");
+        let table = TruthTable::new(&all).unwrap();
+        assert_eq!(table.find(true), Some((0..8).map(|i| (format!("A{}", i), true)).collect()));
+        assert_eq!(table.find(false), Some((0..8).map(|i| (format!("A{}", i), false)).collect()));
+        assert!(TruthTable::new(&p("(A0 & A1 & A2 & A3 & A4 & A5 & A6 & A7) -> A7")).unwrap().is_tautology());
+        // with fewer than 6 variables, the rest of the word isn't made of assignments
+        assert_eq!(TruthTable::new(&p("A & ~A")).unwrap().find(true), None);
+        assert_eq!(TruthTable::new(&p("^|^")).unwrap().find(false), None);
+        assert_eq!(TruthTable::new(&p("_|_")).unwrap().find(true), None);
+        assert!(TruthTable::new(&p("forall x, A")).is_none());
+        assert!(TruthTable::new(&Expr::assoc(Op::Or, &(0..=MAX_ATOMS).map(|i| Expr::var(&format!("A{}", i))).collect::<Vec<_>>())).is_none());
+    }
+}
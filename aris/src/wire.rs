@@ -0,0 +1,365 @@
+/*!
+Compact binary encoding of [`Expr`](crate::expr::Expr)s, for handing expressions to other
+languages in a single buffer instead of one foreign call per node.
+
+# Format
+
+All integers are unsigned [LEB128] varints. A message is:
+
+```text
+message := name_count:varint name* expr_count:varint expr*
+name    := byte_len:varint utf8_bytes
+```
+
+The name table holds every distinct variable and bound variable name, in order of first use.
+Expressions are written in prefix order, each node starting with a one-byte tag:
+
+| tag    | node                | followed by                      |
+|--------|---------------------|----------------------------------|
+| 0      | `Contra`            |                                  |
+| 1      | `Taut`              |                                  |
+| 2      | `Var`               | name index                       |
+| 3      | `Apply`             | arg count, func, args            |
+| 4      | `Not`               | operand                          |
+| 5      | `Impl`              | left, right                      |
+| 6..=11 | `Assoc`             | expr count, exprs                |
+| 12, 13 | `Quant`             | name index, body                 |
+
+The `Assoc` tags are `6 + op` for `And, Or, Bicon, Equiv, Add, Mult` in that order,
+and the `Quant` tags are `12` for `Forall` and `13` for `Exists`.
+
+Decoding refuses expressions nested more than [`MAX_DEPTH`](MAX_DEPTH) nodes deep, so that a
+hostile message can't overflow the stack of the thread decoding it.
+
+```
+use aris::parser::parse_unwrap as p;
+use aris::wire;
+
+let exprs = vec![p("forall x, P(x) -> Q"), p("P(a) & Q")];
+let bytes = wire::encode_exprs(&exprs);
+assert_eq!(wire::decode_exprs(&bytes), Ok(exprs));
+```
+
+[LEB128]: https://en.wikipedia.org/wiki/LEB128
+*/
+
+use crate::expr::{Expr, Op, QuantKind};
+
+use std::collections::HashMap;
+use std::fmt;
+
+const TAG_CONTRA: u8 = 0;
+const TAG_TAUT: u8 = 1;
+const TAG_VAR: u8 = 2;
+const TAG_APPLY: u8 = 3;
+const TAG_NOT: u8 = 4;
+const TAG_IMPL: u8 = 5;
+const TAG_ASSOC: u8 = 6;
+const TAG_QUANT: u8 = 12;
+
+/// Most nodes on any path from the root of a decoded expression to a leaf
+pub const MAX_DEPTH: usize = 1000;
+
+const OPS: [Op; 6] = [Op::And, Op::Or, Op::Bicon, Op::Equiv, Op::Add, Op::Mult];
+const QUANT_KINDS: [QuantKind; 2] = [QuantKind::Forall, QuantKind::Exists];
+
+/// Reasons that a buffer fails to decode
+#[derive(Clone, Debug, PartialEq, Eq)]
+pub enum WireError {
+    /// The buffer ended in the middle of a value
+    UnexpectedEof,
+    /// A varint didn't fit in 64 bits
+    VarintOverflow,
+    /// A node started with an unassigned tag
+    BadTag(u8),
+    /// A node referred to a name past the end of the name table
+    BadNameIndex(u64),
+    /// An entry of the name table wasn't valid UTF-8
+    BadUtf8,
+    /// Bytes were left over after the last expression
+    TrailingBytes(usize),
+    /// An expression was nested more than `MAX_DEPTH` deep
+    TooDeep,
+}
+
+impl fmt::Display for WireError {
+    fn fmt(&self, f: &mut fmt::Formatter) -> fmt::Result {
+        use WireError::*;
+        match self {
+            UnexpectedEof => write!(f, "Unexpected end of encoded expression."),
+            VarintOverflow => write!(f, "Integer in encoded expression is too large."),
+            BadTag(tag) => write!(f, "Unknown node tag {} in encoded expression.", tag),
+            BadNameIndex(i) => write!(f, "Name index {} is out of range in encoded expression.", i),
+            BadUtf8 => write!(f, "Name in encoded expression is not valid UTF-8."),
+            TrailingBytes(n) => write!(f, "{} unexpected bytes after encoded expressions.", n),
+            TooDeep => write!(f, "Encoded expression is nested more than {} levels deep.", MAX_DEPTH),
+        }
+    }
+}
+
+fn write_varint(buf: &mut Vec<u8>, mut x: u64) {
+    while x >= 0x80 {
+        buf.push((x as u8) | 0x80);
+        x >>= 7;
+    }
+    buf.push(x as u8);
+}
+
+/// Builds the name table and the node stream separately, since the table has to come first but is only complete once every expression has been visited
+#[derive(Default)]
+struct Encoder<'a> {
+    names: Vec<&'a str>,
+    name_indices: HashMap<&'a str, u64>,
+    body: Vec<u8>,
+}
+
+impl<'a> Encoder<'a> {
+    fn name(&mut self, name: &'a str) {
+        let names = &mut self.names;
+        let i = *self.name_indices.entry(name).or_insert_with(|| {
+            names.push(name);
+            (names.len() - 1) as u64
+        });
+        write_varint(&mut self.body, i);
+    }
+    fn expr(&mut self, expr: &'a Expr) {
+        // an explicit stack of the nodes left to write, rather than recursion, so that encoding a deeply nested expression can't overflow the stack
+        let mut stack = vec![expr];
+        while let Some(expr) = stack.pop() {
+            match expr {
+                Expr::Contra => self.body.push(TAG_CONTRA),
+                Expr::Taut => self.body.push(TAG_TAUT),
+                Expr::Var { name } => {
+                    self.body.push(TAG_VAR);
+                    self.name(name);
+                }
+                Expr::Apply { func, args } => {
+                    self.body.push(TAG_APPLY);
+                    write_varint(&mut self.body, args.len() as u64);
+                    // children are pushed last first, so that they're written in order
+                    stack.extend(args.iter().rev());
+                    stack.push(func);
+                }
+                Expr::Not { operand } => {
+                    self.body.push(TAG_NOT);
+                    stack.push(operand);
+                }
+                Expr::Impl { left, right } => {
+                    self.body.push(TAG_IMPL);
+                    stack.push(right);
+                    stack.push(left);
+                }
+                Expr::Assoc { op, exprs } => {
+                    self.body.push(TAG_ASSOC + OPS.iter().position(|o| o == op).unwrap() as u8);
+                    write_varint(&mut self.body, exprs.len() as u64);
+                    stack.extend(exprs.iter().rev());
+                }
+                Expr::Quant { kind, name, body } => {
+                    self.body.push(TAG_QUANT + QUANT_KINDS.iter().position(|k| k == kind).unwrap() as u8);
+                    self.name(name);
+                    stack.push(body);
+                }
+            }
+        }
+    }
+    fn finish(self, expr_count: usize) -> Vec<u8> {
+        let mut buf = Vec::with_capacity(self.body.len() + 8 * self.names.len() + 4);
+        write_varint(&mut buf, self.names.len() as u64);
+        for name in self.names {
+            write_varint(&mut buf, name.len() as u64);
+            buf.extend_from_slice(name.as_bytes());
+        }
+        write_varint(&mut buf, expr_count as u64);
+        buf.extend_from_slice(&self.body);
+        buf
+    }
+}
+
+/// Encode a sequence of expressions into one message, sharing a single name table
+pub fn encode_exprs<'a, I: IntoIterator<Item = &'a Expr>>(exprs: I) -> Vec<u8> {
+    let mut enc = Encoder::default();
+    let mut count = 0;
+    for expr in exprs {
+        enc.expr(expr);
+        count += 1;
+    }
+    enc.finish(count)
+}
+
+/// Encode a single expression; equivalent to `encode_exprs(std::iter::once(expr))`
+pub fn encode(expr: &Expr) -> Vec<u8> {
+    encode_exprs(std::iter::once(expr))
+}
+
+struct Decoder<'a> {
+    buf: &'a [u8],
+    pos: usize,
+    names: Vec<String>,
+    /// Number of nodes being decoded, from the root of the current expression down
+    depth: usize,
+}
+
+impl<'a> Decoder<'a> {
+    fn byte(&mut self) -> Result<u8, WireError> {
+        let b = *self.buf.get(self.pos).ok_or(WireError::UnexpectedEof)?;
+        self.pos += 1;
+        Ok(b)
+    }
+    fn varint(&mut self) -> Result<u64, WireError> {
+        let mut x = 0u64;
+        let mut shift = 0;
+        loop {
+            let b = self.byte()?;
+            if shift >= 64 || (shift == 63 && b > 1) {
+                return Err(WireError::VarintOverflow);
+            }
+            x |= u64::from(b & 0x7f) << shift;
+            if b & 0x80 == 0 {
+                return Ok(x);
+            }
+            shift += 7;
+        }
+    }
+    /// Read a length, refusing ones that couldn't possibly fit in the rest of the buffer so that a corrupt length can't trigger a huge allocation
+    fn len(&mut self) -> Result<usize, WireError> {
+        let n = self.varint()?;
+        if n > (self.buf.len() - self.pos) as u64 {
+            return Err(WireError::UnexpectedEof);
+        }
+        Ok(n as usize)
+    }
+    fn name(&mut self) -> Result<String, WireError> {
+        let i = self.varint()?;
+        self.names.get(i as usize).cloned().ok_or(WireError::BadNameIndex(i))
+    }
+    fn exprs(&mut self, n: usize) -> Result<Vec<Expr>, WireError> {
+        let mut exprs = Vec::with_capacity(n);
+        for _ in 0..n {
+            exprs.push(self.expr()?);
+        }
+        Ok(exprs)
+    }
+    fn expr(&mut self) -> Result<Expr, WireError> {
+        if self.depth == MAX_DEPTH {
+            return Err(WireError::TooDeep);
+        }
+        self.depth += 1;
+        let expr = self.node();
+        self.depth -= 1;
+        expr
+    }
+    /// Helper function for `expr()`; decode a node and its children
+    fn node(&mut self) -> Result<Expr, WireError> {
+        let tag = self.byte()?;
+        Ok(match tag {
+            TAG_CONTRA => Expr::Contra,
+            TAG_TAUT => Expr::Taut,
+            TAG_VAR => Expr::Var { name: self.name()? },
+            TAG_APPLY => {
+                let n = self.len()?;
+                let func = Box::new(self.expr()?);
+                Expr::Apply { func, args: self.exprs(n)? }
+            }
+            TAG_NOT => Expr::Not { operand: Box::new(self.expr()?) },
+            TAG_IMPL => {
+                let left = Box::new(self.expr()?);
+                Expr::Impl { left, right: Box::new(self.expr()?) }
+            }
+            _ if (TAG_ASSOC..TAG_ASSOC + OPS.len() as u8).contains(&tag) => {
+                let n = self.len()?;
+                Expr::Assoc { op: OPS[(tag - TAG_ASSOC) as usize], exprs: self.exprs(n)? }
+            }
+            _ if (TAG_QUANT..TAG_QUANT + QUANT_KINDS.len() as u8).contains(&tag) => {
+                let name = self.name()?;
+                Expr::Quant { kind: QUANT_KINDS[(tag - TAG_QUANT) as usize], name, body: Box::new(self.expr()?) }
+            }
+            _ => return Err(WireError::BadTag(tag)),
+        })
+    }
+}
+
+/// Decode a message produced by [`encode_exprs`](encode_exprs)
+pub fn decode_exprs(buf: &[u8]) -> Result<Vec<Expr>, WireError> {
+    let mut dec = Decoder { buf, pos: 0, names: vec![], depth: 0 };
+    let name_count = dec.len()?;
+    for _ in 0..name_count {
+        let len = dec.len()?;
+        let bytes = &dec.buf[dec.pos..dec.pos + len];
+        dec.names.push(String::from(std::str::from_utf8(bytes).map_err(|_| WireError::BadUtf8)?));
+        dec.pos += len;
+    }
+    let expr_count = dec.len()?;
+    let exprs = dec.exprs(expr_count)?;
+    if dec.pos != buf.len() {
+        return Err(WireError::TrailingBytes(buf.len() - dec.pos));
+    }
+    Ok(exprs)
+}
+
+/// Decode a message that holds exactly one expression
+pub fn decode(buf: &[u8]) -> Result<Expr, WireError> {
+    let mut exprs = decode_exprs(buf)?;
+    match exprs.len() {
+        1 => Ok(exprs.pop().unwrap()),
+        0 => Err(WireError::UnexpectedEof),
+        _ => Err(WireError::TrailingBytes(0)),
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    use crate::expr::expressions_for_depth;
+    use crate::parser::parse_unwrap as p;
+
+    use std::collections::BTreeSet;
+
+    #[test]
+    fn test_roundtrip() {
+        let vars: BTreeSet<String> = ["a", "b"].iter().map(|s| s.to_string()).collect();
+        for depth in 0..3 {
+            let exprs: Vec<Expr> = expressions_for_depth(depth, 2, vars.clone()).into_iter().collect();
+            for e in exprs.iter() {
+                assert_eq!(decode(&encode(e)), Ok(e.clone()));
+            }
+            assert_eq!(decode_exprs(&encode_exprs(&exprs)), Ok(exprs));
+        }
+        for s in &["forall x, exists y, (P(x, y) -> Q(f(x)))", "(A <-> B <-> C) === (A * B) === ~(A + B)", "(^|^) | (_|_)"] {
+            let e = p(s);
+            assert_eq!(decode(&encode(&e)), Ok(e));
+        }
+    }
+
+    #[test]
+    fn test_name_table_is_shared() {
+        let e = p("P & P & P & P");
+        assert_eq!(encode(&e), vec![1, 1, b'P', 1, TAG_ASSOC, 4, TAG_VAR, 0, TAG_VAR, 0, TAG_VAR, 0, TAG_VAR, 0]);
+        let long_name = "x".repeat(300);
+        let e = Expr::Var { name: long_name.clone() };
+        assert_eq!(decode(&encode(&e)), Ok(e));
+        assert_eq!(&encode(&Expr::Var { name: long_name })[1..3], &[0xac, 0x02]);
+    }
+
+    #[test]
+    fn test_malformed() {
+        let e = p("forall x, P(x) & Q");
+        let bytes = encode(&e);
+        for i in 0..bytes.len() {
+            assert!(decode(&bytes[..i]).is_err());
+        }
+        let mut extra = bytes.clone();
+        extra.push(0);
+        assert_eq!(decode(&extra), Err(WireError::TrailingBytes(1)));
+        assert_eq!(decode(&[0, 1, 200]), Err(WireError::BadTag(200)));
+        assert_eq!(decode(&[0, 1, TAG_VAR, 0]), Err(WireError::BadNameIndex(0)));
+        assert_eq!(decode(&[1, 1, 0xff, 1, TAG_VAR, 0]), Err(WireError::BadUtf8));
+        assert_eq!(decode(&[0xff; 11]), Err(WireError::VarintOverflow));
+        // a chain of negations, MAX_DEPTH nodes deep in all, and then one node deeper
+        let nested = |nots| std::iter::repeat(TAG_NOT).take(nots).chain(vec![TAG_TAUT]).collect::<Vec<u8>>();
+        let header: &[u8] = &[0, 1];
+        let deepest = [header, &nested(MAX_DEPTH - 1)[..]].concat();
+        assert_eq!(decode(&deepest).map(|e| encode(&e)), Ok(deepest));
+        assert_eq!(decode(&[header, &nested(MAX_DEPTH)[..]].concat()), Err(WireError::TooDeep));
+    }
+}
@@ -57,7 +57,18 @@ impl<T> ZipperVec<T> {
         if i < j {
             self.prefix.get(i)
         } else if i - j < k {
-            self.suffix_r.get(i - j)
+            self.suffix_r.get(k - 1 - (i - j))
+        } else {
+            None
+        }
+    }
+    pub fn get_mut(&mut self, i: usize) -> Option<&mut T> {
+        let j = self.cursor_pos();
+        let k = self.suffix_r.len();
+        if i < j {
+            self.prefix.get_mut(i)
+        } else if i - j < k {
+            self.suffix_r.get_mut(k - 1 - (i - j))
         } else {
             None
         }
@@ -78,6 +89,21 @@ impl<T> Default for ZipperVec<T> {
     }
 }
 
+#[test]
+fn test_zippervec_get() {
+    let mut a = ZipperVec::from_vec((0usize..10).into_iter().collect());
+    for i in 0..=10 {
+        a.move_cursor(i);
+        for j in 0..10 {
+            assert_eq!(a.get(j), Some(&j));
+        }
+        assert_eq!(a.get(10), None);
+        *a.get_mut(3).unwrap() += 10;
+        assert_eq!(a.iter().cloned().collect::<Vec<usize>>()[3], 13);
+        *a.get_mut(3).unwrap() -= 10;
+    }
+}
+
 #[test]
 fn test_zippervec_pop() {
     let a = ZipperVec::from_vec((0usize..10).into_iter().collect());
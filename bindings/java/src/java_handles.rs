@@ -0,0 +1,68 @@
+//! Ownership of Rust values referenced from Java through `long pointerToRustHeap` fields.
+//!
+//! A handle is created by `into_handle`, which moves the value onto the Rust heap, and must be released exactly once by `drop_handle`.
+//! The Java classes are expected to register a `java.lang.ref.Cleaner` action that calls their static `dispose(long)` native with the pointer (the action must not capture the object itself), and may also call it eagerly from `close()` after zeroing the field.
+//! `close()` must not race with other calls on the same object: `RustProof.dispose` waits for calls that already hold the proof's lock, but a call that has read the pointer and not yet taken the lock would still see freed memory, so Java has to order `close()` after every other use (e.g. by synchronizing them).
+//! The `Cleaner` path is always safe, since it only runs once the object is unreachable.
+//! `Rule` handles point into the static `RuleM::ALL_RULES` table, so they are never allocated and need no disposal.
+
+use super::*;
+
+use crate::java_proof::SharedProof;
+
+use aris::expr::Expr;
+
+use std::sync::atomic::{AtomicI64, Ordering};
+
+/// Number of handles created by `into_handle` that haven't been released yet
+static LIVE_HANDLES: AtomicI64 = AtomicI64::new(0);
+
+/// Move `x` onto the Rust heap, returning a pointer for a `pointerToRustHeap` field
+pub fn into_handle<T>(x: T) -> jni::sys::jlong {
+    LIVE_HANDLES.fetch_add(1, Ordering::Relaxed);
+    Box::into_raw(Box::new(x)) as jni::sys::jlong
+}
+
+/// Free a value created by `into_handle::<T>`; a null pointer is ignored.
+///
+/// # Safety
+/// `ptr` must have come from `into_handle::<T>`, and must not be used or released again afterwards.
+pub unsafe fn drop_handle<T>(ptr: jni::sys::jlong) {
+    if ptr != 0 {
+        drop(Box::from_raw(ptr as *mut T));
+        LIVE_HANDLES.fetch_sub(1, Ordering::Relaxed);
+    }
+}
+
+pub fn live_handles() -> i64 {
+    LIVE_HANDLES.load(Ordering::Relaxed)
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_dispose(env: JNIEnv, _cls: JClass, ptr: jni::sys::jlong) {
+    with_thrown_errors(&env, |_| {
+        if ptr != 0 {
+            // wait for calls still using the proof, such as a background `checkAllLines`, to release it
+            drop(unsafe { &*(ptr as *const SharedProof) }.write());
+        }
+        unsafe { drop_handle::<SharedProof>(ptr) };
+        Ok(())
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_dispose(env: JNIEnv, _cls: JClass, ptr: jni::sys::jlong) {
+    with_thrown_errors(&env, |_| {
+        unsafe { drop_handle::<Expr>(ptr) };
+        Ok(())
+    })
+}
+
+/// `static long liveCount()`, for tests and leak monitoring
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_NativeHandles_liveCount(_env: JNIEnv, _cls: JClass) -> jni::sys::jlong {
+    live_handles()
+}
@@ -0,0 +1,149 @@
+//! Natives for `edu.rpi.aris.ast.NativeExpression`, an expression that stays on the Rust heap.
+//!
+//! Unlike `edu.rpi.aris.ast.Expression`, which is converted node by node every time it crosses into Rust, a `NativeExpression` only holds a `long pointerToRustHeap` to a boxed `Expr`.
+//! Printing, comparison, hashing and free variable queries cost a single JNI call regardless of the size of the expression.
+//! The Java side is expected to look like:
+//!
+//! ```java
+//! public class NativeExpression {
+//!     private long pointerToRustHeap;
+//!     private Expression materialized; // filled in by the first call to getExpression()
+//!     NativeExpression(long pointer) { pointerToRustHeap = pointer; }
+//!     public static native NativeExpression parse(String s);
+//!     public static native NativeExpression fromExpression(Expression e);
+//!     public static native NativeExpression fromEncoded(byte[] wire);
+//!     public native byte[] toEncoded();
+//!     public native Expression toExpression();
+//!     public native String toString();
+//!     public native String toDebugString();
+//!     public native boolean equals(Object other);
+//!     public native int hashCode();
+//!     public native String[] freeVars();
+//!     static native void dispose(long pointer); // see crate::java_handles
+//! }
+//! ```
+
+use super::*;
+
+use crate::java_handles::{drop_handle, into_handle};
+use crate::java_registry::*;
+
+use aris::expr::free_vars;
+use aris::expr::Expr;
+
+use std::collections::hash_map::DefaultHasher;
+use std::hash::{Hash, Hasher};
+
+/// Dereference the `Expr` behind a `NativeExpression`, failing (rather than crashing the JVM) if it has already been disposed
+fn native_expr<'a>(env: &JNIEnv, obj: JObject) -> jni::errors::Result<&'a Expr> {
+    let ptr = native_expression_class(env)?.get_pointer(env, obj)?;
+    if ptr == 0 {
+        return Err(jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg("NativeExpression: use after dispose".into())));
+    }
+    Ok(unsafe { &*(ptr as *mut Expr) })
+}
+
+/// Move `expr` onto the Rust heap and wrap it in a `NativeExpression`
+pub fn expr_to_native<'a>(env: &JNIEnv<'a>, expr: Expr) -> jni::errors::Result<JObject<'a>> {
+    let ptr = into_handle(expr);
+    native_expression_class(env)?.wrap(env, ptr).map_err(|e| {
+        unsafe { drop_handle::<Expr>(ptr) };
+        e
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_parse(env: JNIEnv, _cls: JClass, s: JString) -> jobject {
+    with_thrown_errors(&env, |env| {
+        if let Some(expr) = aris::parser::parse(&jobject_to_string(env, s.into())?) {
+            Ok(expr_to_native(env, expr)?.into_inner())
+        } else {
+            Ok(std::ptr::null_mut())
+        }
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_fromExpression(env: JNIEnv, _cls: JClass, e: JObject) -> jobject {
+    with_thrown_errors(&env, |env| {
+        let expr = jobject_to_expr(env, e)?;
+        Ok(expr_to_native(env, expr)?.into_inner())
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_fromEncoded(env: JNIEnv, _cls: JClass, wire: jni::sys::jbyteArray) -> jobject {
+    with_thrown_errors(&env, |env| {
+        let expr = aris::wire::decode(&jarray_to_bytes(env, wire)?).map_err(|e| jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg(format!("NativeExpression::fromEncoded: {}", e))))?;
+        Ok(expr_to_native(env, expr)?.into_inner())
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_toEncoded(env: JNIEnv, this: JObject) -> jni::sys::jbyteArray {
+    with_thrown_errors(&env, |env| bytes_to_jarray(env, &aris::wire::encode(native_expr(env, this)?)))
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_toExpression(env: JNIEnv, this: JObject) -> jobject {
+    with_thrown_errors(&env, |env| {
+        let expr = native_expr(env, this)?;
+        Ok(expr_to_jobject(env, expr.clone())?.into_inner())
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_toString(env: JNIEnv, this: JObject) -> jstring {
+    with_thrown_errors(&env, |env| Ok(env.new_string(format!("{}", native_expr(env, this)?))?.into_inner()))
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_toDebugString(env: JNIEnv, this: JObject) -> jstring {
+    with_thrown_errors(&env, |env| Ok(env.new_string(format!("{:?}", native_expr(env, this)?))?.into_inner()))
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_equals(env: JNIEnv, this: JObject, other: JObject) -> jni::sys::jboolean {
+    with_thrown_errors(&env, |env| {
+        if other.is_null() || !env.is_instance_of(other, JClass::from(native_expression_class(env)?.class.as_obj()))? {
+            return Ok(false as _);
+        }
+        Ok((native_expr(env, this)? == native_expr(env, other)?) as _)
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_hashCode(env: JNIEnv, this: JObject) -> jni::sys::jint {
+    with_thrown_errors(&env, |env| {
+        let mut hasher = DefaultHasher::new();
+        native_expr(env, this)?.hash(&mut hasher);
+        let h = hasher.finish();
+        Ok((h ^ (h >> 32)) as jni::sys::jint)
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_ast_NativeExpression_freeVars(env: JNIEnv, this: JObject) -> jarray {
+    with_thrown_errors(&env, |env| {
+        let reg = registry(env)?;
+        let mut vars = free_vars(native_expr(env, this)?).into_iter().collect::<Vec<_>>();
+        vars.sort();
+        let arr = env.new_object_array(vars.len() as _, JClass::from(reg.string.as_obj()), JObject::null())?;
+        for (i, var) in vars.into_iter().enumerate() {
+            let s = env.new_string(var)?;
+            env.set_object_array_element(arr, i as _, JObject::from(s))?;
+            env.delete_local_ref(JObject::from(s))?;
+        }
+        Ok(arr)
+    })
+}
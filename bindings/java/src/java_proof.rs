@@ -1,19 +1,68 @@
 use super::*;
 
+use crate::java_handles::{drop_handle, into_handle};
+use crate::java_registry::*;
+
 use aris::expr::Expr;
 use aris::proofs::lined_proof::LinedProof;
 use aris::proofs::pooledproof::PooledProof;
 use aris::proofs::Proof;
+use aris::rules::ProofCheckError;
 
 use frunk_core::Hlist;
 
+use jni::objects::JByteBuffer;
+
+use std::sync::{RwLock, RwLockReadGuard, RwLockWriteGuard};
+
+pub type JavaProof = LinedProof<PooledProof<Hlist![Expr]>>;
+
+/// The value behind a `RustProof`'s `pointerToRustHeap`.
+/// Any number of Java threads may read the proof at once (e.g. verifying in the background), while edits take the lock exclusively.
+pub struct SharedProof(RwLock<JavaProof>);
+
+// PooledProof isn't automatically Send/Sync because its subproofs hold raw pointers to the proof's own boxed pools.
+// Those pointers never escape the proof, all access goes through the lock, and the `&self` methods of `Proof` only read through them, so sharing is sound.
+unsafe impl Send for SharedProof {}
+unsafe impl Sync for SharedProof {}
+
+impl SharedProof {
+    pub fn read(&self) -> RwLockReadGuard<JavaProof> {
+        self.0.read().unwrap_or_else(|e| e.into_inner())
+    }
+    pub fn write(&self) -> RwLockWriteGuard<JavaProof> {
+        self.0.write().unwrap_or_else(|e| e.into_inner())
+    }
+}
+
+/// Move a proof onto the Rust heap and wrap it in a `RustProof`, which owns it until `RustProof.dispose`
+fn wrap_proof<'a>(env: &JNIEnv<'a>, prf: JavaProof) -> jni::errors::Result<JObject<'a>> {
+    let ptr = into_handle(SharedProof(RwLock::new(prf)));
+    registry(env)?.rust_proof.wrap(env, ptr).map_err(|e| {
+        unsafe { drop_handle::<SharedProof>(ptr) };
+        e
+    })
+}
+
+/// A read-locked proof, shareable with `parallel_map` workers for the lifetime of the guard it was borrowed from (see the `Sync` impl of `SharedProof`)
+struct LockedProof<'a>(&'a JavaProof);
+unsafe impl Sync for LockedProof<'_> {}
+
+/// Get the `SharedProof` behind a `RustProof`
+fn shared_proof<'a>(env: &JNIEnv, obj: JObject) -> jni::errors::Result<&'a SharedProof> {
+    let ptr: jni::sys::jlong = registry(env)?.rust_proof.get_pointer(env, obj)?;
+    if ptr == 0 {
+        return Err(jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg("RustProof: use after dispose".into())));
+    }
+    Ok(unsafe { &*(ptr as *const SharedProof) })
+}
+
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_toString(env: JNIEnv, obj: JObject) -> jstring {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(obj, "pointerToRustHeap", "J")?.j()?;
-        let prf: &LinedProof<PooledProof<Hlist![Expr]>> = unsafe { &*(ptr as *mut LinedProof<PooledProof<Hlist![Expr]>>) };
-        Ok(env.new_string(format!("{:?}", prf))?.into_inner())
+        let prf = shared_proof(env, obj)?.read();
+        Ok(env.new_string(format!("{:?}", *prf))?.into_inner())
     })
 }
 
@@ -21,9 +70,7 @@ pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_toString(env: JNIEnv, o
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_createProof(env: JNIEnv, _: JObject) -> jobject {
     with_thrown_errors(&env, |env| {
-        let prf = Box::into_raw(Box::new(LinedProof::<PooledProof<Hlist![Expr]>>::new()));
-        let jprf = env.new_object("edu/rpi/aris/proof/RustProof", "(J)V", &[JValue::from(prf as jni::sys::jlong)]);
-        Ok(jprf?.into_inner())
+        Ok(wrap_proof(env, LinedProof::new())?.into_inner())
     })
 }
 
@@ -31,8 +78,7 @@ pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_createProof(env: JNIEnv
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_addLine(env: JNIEnv, this: JObject, index: jni::sys::jlong, is_assumption: jni::sys::jboolean, subproof_level: jni::sys::jlong) {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(this, "pointerToRustHeap", "J")?.j()?;
-        let self_: &mut LinedProof<PooledProof<Hlist![Expr]>> = unsafe { &mut *(ptr as *mut _) };
+        let mut self_ = shared_proof(env, this)?.write();
         self_.add_line(index as _, is_assumption != 0, subproof_level as _);
         Ok(())
     })
@@ -42,9 +88,8 @@ pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_addLine(env: JNIEnv, th
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_setExpressionString(env: JNIEnv, this: JObject, index: jni::sys::jlong, text: JObject) {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(this, "pointerToRustHeap", "J")?.j()?;
-        let self_: &mut LinedProof<PooledProof<Hlist![Expr]>> = unsafe { &mut *(ptr as *mut _) };
-        self_.set_expr(index as _, jobject_to_string(env, text)?);
+        let text = jobject_to_string(env, text)?;
+        shared_proof(env, this)?.write().set_expr(index as _, text);
         Ok(())
     })
 }
@@ -53,8 +98,7 @@ pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_setExpressionString(env
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_moveCursor(env: JNIEnv, this: JObject, index: jni::sys::jlong) {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(this, "pointerToRustHeap", "J")?.j()?;
-        let self_: &mut LinedProof<PooledProof<Hlist![Expr]>> = unsafe { &mut *(ptr as *mut _) };
+        let mut self_ = shared_proof(env, this)?.write();
         // Java ends up passing -1 here on startup for some reason, so ignore that.
         // Other invalid values should still trigger an assert in ZipperVec::move_cursor.
         if index != -1 {
@@ -64,20 +108,53 @@ pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_moveCursor(env: JNIEnv,
     })
 }
 
+/// Load a proof from XML, returning a `RustProof`, or null if the XML isn't a valid proof
+fn proof_from_xml_reader<R: std::io::Read>(env: &JNIEnv, r: R) -> jni::errors::Result<jobject> {
+    if let Ok((prf, _)) = aris::proofs::xml_interop::proof_from_xml::<PooledProof<Hlist![Expr]>, _>(r) {
+        Ok(wrap_proof(env, LinedProof::from_proof(prf))?.into_inner())
+    } else {
+        Ok(std::ptr::null_mut())
+    }
+}
+
+// `fromXml` is overloaded, so both overloads need the long (signature-mangled) symbol names
+
+/// `static RustProof fromXml(String xml)`
 #[no_mangle]
 #[allow(non_snake_case)]
-pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_fromXml(env: JNIEnv, _: JObject, jxml: JString) -> jobject {
+pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_fromXml__Ljava_lang_String_2(env: JNIEnv, _: JObject, jxml: JString) -> jobject {
     with_thrown_errors(&env, |env| {
         let xml = String::from(env.get_string(jxml)?);
-        println!("{:?}", xml);
-        if let Ok((prf, _)) = aris::proofs::xml_interop::proof_from_xml::<PooledProof<Hlist![Expr]>, _>(xml.as_bytes()) {
-            println!("{}", prf);
-            let prf = Box::into_raw(Box::new(LinedProof::<PooledProof<Hlist![Expr]>>::from_proof(prf)));
-            let jprf = env.new_object("edu/rpi/aris/proof/RustProof", "(J)V", &[JValue::from(prf as jni::sys::jlong)])?;
-            Ok(jprf.into_inner())
-        } else {
-            Ok(std::ptr::null_mut())
+        proof_from_xml_reader(env, xml.as_bytes())
+    })
+}
+
+/// `static RustProof fromXml(ByteBuffer xml)`, which parses the bytes between the buffer's position and limit in place.
+/// The buffer must be direct (e.g. from `ByteBuffer.allocateDirect` or `FileChannel.map`).
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_fromXml__Ljava_nio_ByteBuffer_2(env: JNIEnv, _: JObject, buf: JObject) -> jobject {
+    with_thrown_errors(&env, |env| {
+        let reg = registry(env)?;
+        let position = env.call_method_unchecked(buf, reg.buffer_position.id(), int_type(), &[])?.i()? as usize;
+        let limit = env.call_method_unchecked(buf, reg.buffer_limit.id(), int_type(), &[])?.i()? as usize;
+        let bytes = env.get_direct_buffer_address(JByteBuffer::from(buf))?;
+        if position > limit || limit > bytes.len() {
+            return Err(jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg(format!("RustProof::fromXml: invalid buffer bounds {}..{} of {}", position, limit, bytes.len()))));
         }
+        aris::metrics::count(aris::metrics::Counter::BytesMarshalled, (limit - position) as u64);
+        proof_from_xml_reader(env, &bytes[position..limit])
+    })
+}
+
+/// `static RustProof fromFile(String path)`, which streams the file into the XML parser without loading it into a string on either side
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_fromFile(env: JNIEnv, _: JObject, path: JString) -> jobject {
+    with_thrown_errors(&env, |env| {
+        let path = String::from(env.get_string(path)?);
+        let file = std::fs::File::open(&path).map_err(|e| jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg(format!("RustProof::fromFile: couldn't open {}: {}", path, e))))?;
+        proof_from_xml_reader(env, std::io::BufReader::new(file))
     })
 }
 
@@ -85,17 +162,82 @@ pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_fromXml(env: JNIEnv, _:
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_checkRuleAtLine(env: JNIEnv, this: JObject, linenum: jni::sys::jlong) -> jstring {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(this, "pointerToRustHeap", "J")?.j()?;
-        let self_: &mut LinedProof<PooledProof<Hlist![Expr]>> = unsafe { &mut *(ptr as *mut _) };
-        println!("RustProof::checkRuleAtLine {:?}", self_);
-        if let Some(line) = self_.lines.get(linenum as _) {
-            if let Err(e) = self_.proof.verify_line(&line.reference) {
-                Ok(env.new_string(&format!("{}", e))?.into_inner())
-            } else {
-                Ok(std::ptr::null_mut())
-            }
+        let self_ = shared_proof(env, this)?.read();
+        let msg = if let Some(line) = self_.lines.get(linenum as _) {
+            self_.proof.verify_line(&line.reference).err().map(|e| format!("{}", e))
         } else {
-            Ok(env.new_string(&format!("Failed to dereference line {} in {:?}", linenum, self_))?.into_inner())
+            Some(format!("Failed to dereference line {} in {:?}", linenum, *self_))
+        };
+        drop(self_);
+        match msg {
+            Some(msg) => Ok(env.new_string(msg)?.into_inner()),
+            None => Ok(std::ptr::null_mut()),
+        }
+    })
+}
+
+/// Every line's expression, in display order, as one `aris::wire` message
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_linesEncoded(env: JNIEnv, this: JObject) -> jni::sys::jbyteArray {
+    with_thrown_errors(&env, |env| {
+        let self_ = shared_proof(env, this)?.read();
+        let mut exprs = Vec::with_capacity(self_.len());
+        for (i, line) in self_.lines.iter().enumerate() {
+            match self_.proof.lookup_expr(&line.reference) {
+                Some(expr) => exprs.push(expr),
+                None => return Err(jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg(format!("RustProof::linesEncoded: failed to dereference line {}", i)))),
+            }
+        }
+        drop(self_);
+        bytes_to_jarray(env, &aris::wire::encode_exprs(&exprs))
+    })
+}
+
+/// Indices of the lines that need re-verification since the last call, because their expression or the expression of something they depend on changed: `long[] takeStaleLines()`
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_takeStaleLines(env: JNIEnv, this: JObject) -> jni::sys::jlongArray {
+    with_thrown_errors(&env, |env| {
+        let mut self_ = shared_proof(env, this)?.write();
+        let stale = self_.take_stale();
+        let indices = self_.lines.iter().enumerate().filter(|(_, line)| stale.contains(&line.reference)).map(|(i, _)| i as jni::sys::jlong).collect::<Vec<_>>();
+        drop(self_);
+        let arr = env.new_long_array(indices.len() as _)?;
+        env.set_long_array_region(arr, 0, &indices)?;
+        Ok(arr)
+    })
+}
+
+/// Status codes for `checkAllLines`
+const LINE_OK: u8 = 0;
+const LINE_ERROR: u8 = 1;
+const LINE_MISSING: u8 = 2;
+
+/// Verify every line of the proof at once: `byte[] checkAllLines()`.
+/// Lines are checked in parallel against one consistent snapshot (under the read lock).
+/// The result has one record per line, in line order: a status byte (0 for a valid line, 1 for a line with an error, 2 for a line that couldn't be dereferenced), followed for nonzero statuses by the message as a big-endian 4-byte length and UTF-8 bytes, which is `DataInputStream.readByte`/`readInt` friendly.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_proof_RustProof_checkAllLines(env: JNIEnv, this: JObject) -> jni::sys::jbyteArray {
+    with_thrown_errors(&env, |env| {
+        let self_ = shared_proof(env, this)?.read();
+        let prf = LockedProof(&*self_);
+        let refs = self_.lines.iter().map(|line| line.reference).collect::<Vec<_>>();
+        let results = parallel_map(refs, |r| match prf.0.proof.verify_line(&r) {
+            Ok(()) => (LINE_OK, String::new()),
+            Err(e @ ProofCheckError::LineDoesNotExist(_)) => (LINE_MISSING, format!("{}", e)),
+            Err(e) => (LINE_ERROR, format!("{}", e)),
+        });
+        drop(self_);
+        let mut buf = Vec::with_capacity(results.len());
+        for (status, msg) in results {
+            buf.push(status);
+            if status != LINE_OK {
+                buf.extend_from_slice(&(msg.len() as u32).to_be_bytes());
+                buf.extend_from_slice(msg.as_bytes());
+            }
         }
+        bytes_to_jarray(env, &buf)
     })
 }
@@ -0,0 +1,436 @@
+//! Cached global class references, field IDs, and method IDs for the `edu.rpi.aris.*` types.
+//!
+//! Resolving classes and members by name costs a string lookup inside the JVM on every call, which dominates the cost of converting large expressions.
+//! `Registry` resolves everything once (in `JNI_OnLoad`, or on the first native call if that didn't happen) and is then shared by all threads.
+
+use super::*;
+
+use aris::expr::Expr;
+use aris::expr::Op;
+use aris::expr::QuantKind;
+use aris::rules::RuleClassification;
+
+use jni::objects::{GlobalRef, JFieldID, JMethodID};
+use jni::signature::{JavaType, Primitive};
+use jni::sys::{jfieldID, jmethodID};
+
+use lazy_static::lazy_static;
+
+use std::ptr;
+use std::sync::atomic::{AtomicPtr, Ordering};
+use std::sync::Mutex;
+
+/// A value resolved from the JVM on first use and then shared by all threads for the life of the process.
+/// Resolution can fail, leaving the slot empty for the next caller to retry, and only one thread resolves at a time, so a value is never built (and leaked) twice.
+struct Resolved<T> {
+    value: AtomicPtr<T>,
+    resolving: Mutex<()>,
+}
+
+impl<T: Send + Sync> Resolved<T> {
+    fn new() -> Self {
+        Resolved { value: AtomicPtr::new(ptr::null_mut()), resolving: Mutex::new(()) }
+    }
+
+    /// The value, resolving it with `init` if no call has succeeded yet
+    fn get_or_try_init<E, F: FnOnce() -> Result<T, E>>(&self, init: F) -> Result<&T, E> {
+        let mut value = self.value.load(Ordering::Acquire);
+        if value.is_null() {
+            let _guard = self.resolving.lock().unwrap_or_else(|e| e.into_inner());
+            value = self.value.load(Ordering::Acquire);
+            if value.is_null() {
+                value = Box::into_raw(Box::new(init()?));
+                self.value.store(value, Ordering::Release);
+            }
+        }
+        // values are never freed, and only ever stored once
+        Ok(unsafe { &*value })
+    }
+}
+
+lazy_static! {
+    static ref REGISTRY: Resolved<Registry> = Resolved::new();
+    /// Kept out of `Registry`, so that a Java side without `NativeExpression` can still use everything else
+    static ref NATIVE_EXPRESSION: Resolved<HandleClass> = Resolved::new();
+    static ref PREMISE: Resolved<Option<PremiseClass>> = Resolved::new();
+    static ref CLAIM: Resolved<ClaimClass> = Resolved::new();
+}
+
+/// Get the process-wide registry, resolving it with `env` if this is the first use
+pub fn registry(env: &JNIEnv) -> jni::errors::Result<&'static Registry> {
+    REGISTRY.get_or_try_init(|| Registry::new(env))
+}
+
+/// Get `edu.rpi.aris.ast.NativeExpression`, which only the `NativeExpression` natives need, resolving it if this is the first use
+pub fn native_expression_class(env: &JNIEnv) -> jni::errors::Result<&'static HandleClass> {
+    NATIVE_EXPRESSION.get_or_try_init(|| HandleClass::new(env, "edu/rpi/aris/ast/NativeExpression"))
+}
+
+/// Get `edu.rpi.aris.rules.Premise`, or `None` if it or one of its methods is missing, in which case callers should call its methods by name.
+/// Either way, resolution is only attempted once.
+pub fn premise_class(env: &JNIEnv) -> jni::errors::Result<Option<&'static PremiseClass>> {
+    let premise = PREMISE.get_or_try_init(|| match PremiseClass::new(env) {
+        Ok(premise) => Ok(Some(premise)),
+        Err(_) => env.exception_clear().map(|()| None),
+    })?;
+    Ok(premise.as_ref())
+}
+
+/// Get `edu.rpi.aris.rules.Claim`, which only the batch checks take, resolving it if this is the first use
+pub fn claim_class(env: &JNIEnv) -> jni::errors::Result<&'static ClaimClass> {
+    CLAIM.get_or_try_init(|| ClaimClass::new(env))
+}
+
+/// A `jfieldID` that can be stored in a static.
+/// Field IDs stay valid for as long as their class is loaded, which the `GlobalRef`s held by `Registry` guarantee.
+#[derive(Clone, Copy)]
+pub struct FieldId(jfieldID);
+unsafe impl Send for FieldId {}
+unsafe impl Sync for FieldId {}
+
+impl FieldId {
+    fn new(env: &JNIEnv, class: &GlobalRef, name: &str, sig: &str) -> jni::errors::Result<Self> {
+        Ok(FieldId(env.get_field_id(JClass::from(class.as_obj()), name, sig)?.into_inner()))
+    }
+    pub fn id<'a>(self) -> JFieldID<'a> {
+        JFieldID::from(self.0)
+    }
+}
+
+/// A `jmethodID` that can be stored in a static, with the same validity argument as `FieldId`
+#[derive(Clone, Copy)]
+pub struct MethodId(jmethodID);
+unsafe impl Send for MethodId {}
+unsafe impl Sync for MethodId {}
+
+impl MethodId {
+    fn new(env: &JNIEnv, class: &GlobalRef, name: &str, sig: &str) -> jni::errors::Result<Self> {
+        Ok(MethodId(env.get_method_id(JClass::from(class.as_obj()), name, sig)?.into_inner()))
+    }
+    pub fn id<'a>(self) -> JMethodID<'a> {
+        JMethodID::from(self.0)
+    }
+}
+
+/// Return type descriptor for object-valued fields and methods; the class name is only used for error messages by the jni crate
+pub fn object_type() -> JavaType {
+    JavaType::Object(String::new())
+}
+
+pub fn int_type() -> JavaType {
+    JavaType::Primitive(Primitive::Int)
+}
+
+pub fn boolean_type() -> JavaType {
+    JavaType::Primitive(Primitive::Boolean)
+}
+
+pub fn long_type() -> JavaType {
+    JavaType::Primitive(Primitive::Long)
+}
+
+fn global_class(env: &JNIEnv, name: &str) -> jni::errors::Result<GlobalRef> {
+    let cls = env.find_class(name)?;
+    env.new_global_ref(JObject::from(cls))
+}
+
+/// The concrete subclasses of `edu.rpi.aris.ast.Expression`, one per `Expr` constructor (and per `Op`/`QuantKind`)
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+pub enum ExprKind {
+    Contra,
+    Taut,
+    Var,
+    Apply,
+    Not,
+    Impl,
+    Assoc(Op),
+    Quant(QuantKind),
+}
+
+impl From<&Expr> for ExprKind {
+    fn from(e: &Expr) -> ExprKind {
+        match e {
+            Expr::Contra => ExprKind::Contra,
+            Expr::Taut => ExprKind::Taut,
+            Expr::Var { .. } => ExprKind::Var,
+            Expr::Apply { .. } => ExprKind::Apply,
+            Expr::Not { .. } => ExprKind::Not,
+            Expr::Impl { .. } => ExprKind::Impl,
+            Expr::Assoc { op, .. } => ExprKind::Assoc(*op),
+            Expr::Quant { kind, .. } => ExprKind::Quant(*kind),
+        }
+    }
+}
+
+/// Order in which `Registry::expr_kind` compares classes; roughly most to least common in student proofs
+static EXPR_PROBE_ORDER: [ExprKind; 14] = [
+    ExprKind::Var,
+    ExprKind::Apply,
+    ExprKind::Not,
+    ExprKind::Assoc(Op::And),
+    ExprKind::Assoc(Op::Or),
+    ExprKind::Impl,
+    ExprKind::Assoc(Op::Bicon),
+    ExprKind::Quant(QuantKind::Forall),
+    ExprKind::Quant(QuantKind::Exists),
+    ExprKind::Contra,
+    ExprKind::Taut,
+    ExprKind::Assoc(Op::Equiv),
+    ExprKind::Assoc(Op::Add),
+    ExprKind::Assoc(Op::Mult),
+];
+
+/// A class along with its no-argument constructor
+pub struct ExprClass {
+    pub class: GlobalRef,
+    pub ctor: MethodId,
+}
+
+impl ExprClass {
+    fn new(env: &JNIEnv, name: &str) -> jni::errors::Result<Self> {
+        let class = global_class(env, name)?;
+        let ctor = MethodId::new(env, &class, "<init>", "()V")?;
+        Ok(ExprClass { class, ctor })
+    }
+}
+
+/// A class that wraps a pointer to the Rust heap in a `long pointerToRustHeap` field, constructed through a `(J)V` constructor
+pub struct HandleClass {
+    pub class: GlobalRef,
+    pub ctor: MethodId,
+    pub pointer: FieldId,
+}
+
+impl HandleClass {
+    fn new(env: &JNIEnv, name: &str) -> jni::errors::Result<Self> {
+        let class = global_class(env, name)?;
+        let ctor = MethodId::new(env, &class, "<init>", "(J)V")?;
+        let pointer = FieldId::new(env, &class, "pointerToRustHeap", "J")?;
+        Ok(HandleClass { class, ctor, pointer })
+    }
+
+    /// Read the `pointerToRustHeap` field of an instance of this class
+    pub fn get_pointer(&self, env: &JNIEnv, obj: JObject) -> jni::errors::Result<jni::sys::jlong> {
+        env.get_field_unchecked(obj, self.pointer.id(), long_type())?.j()
+    }
+
+    /// Construct an instance of this class wrapping `ptr`
+    pub fn wrap<'a>(&self, env: &JNIEnv<'a>, ptr: jni::sys::jlong) -> jni::errors::Result<JObject<'a>> {
+        env.new_object_unchecked(JClass::from(self.class.as_obj()), self.ctor.id(), &[JValue::from(ptr)])
+    }
+}
+
+/// `edu.rpi.aris.rules.Premise`, along with the methods `decode_claim` calls on it
+pub struct PremiseClass {
+    pub class: GlobalRef,
+    pub is_subproof: MethodId,
+    pub get_premise: MethodId,
+    pub get_assumption: MethodId,
+    pub get_subproof_lines: MethodId,
+}
+
+impl PremiseClass {
+    fn new(env: &JNIEnv) -> jni::errors::Result<Self> {
+        let class = global_class(env, "edu/rpi/aris/rules/Premise")?;
+        Ok(PremiseClass {
+            is_subproof: MethodId::new(env, &class, "isSubproof", "()Z")?,
+            get_premise: MethodId::new(env, &class, "getPremise", "()Ledu/rpi/aris/ast/Expression;")?,
+            get_assumption: MethodId::new(env, &class, "getAssumption", "()Ledu/rpi/aris/ast/Expression;")?,
+            get_subproof_lines: MethodId::new(env, &class, "getSubproofLines", "()[Ledu/rpi/aris/ast/Expression;")?,
+            class,
+        })
+    }
+}
+
+/// `edu.rpi.aris.rules.Claim`, along with its getters
+pub struct ClaimClass {
+    pub class: GlobalRef,
+    pub get_conclusion: MethodId,
+    pub get_premises: MethodId,
+}
+
+impl ClaimClass {
+    fn new(env: &JNIEnv) -> jni::errors::Result<Self> {
+        let class = global_class(env, "edu/rpi/aris/rules/Claim")?;
+        Ok(ClaimClass {
+            get_conclusion: MethodId::new(env, &class, "getConclusion", "()Ledu/rpi/aris/ast/Expression;")?,
+            get_premises: MethodId::new(env, &class, "getPremises", "()[Ledu/rpi/aris/rules/Premise;")?,
+            class,
+        })
+    }
+}
+
+pub struct Registry {
+    pub contra: ExprClass,
+    pub taut: ExprClass,
+    pub var: ExprClass,
+    pub apply: ExprClass,
+    pub not: ExprClass,
+    pub implication: ExprClass,
+    pub and: ExprClass,
+    pub or: ExprClass,
+    pub bicon: ExprClass,
+    pub equiv: ExprClass,
+    pub add: ExprClass,
+    pub mult: ExprClass,
+    pub forall: ExprClass,
+    pub exists: ExprClass,
+
+    pub var_name: FieldId,
+    pub apply_func: FieldId,
+    pub apply_args: FieldId,
+    pub not_operand: FieldId,
+    pub impl_left: FieldId,
+    pub impl_right: FieldId,
+    /// The `exprs` field of each associative class, indexed by `op_index`
+    pub assoc_exprs: [FieldId; 6],
+    /// The `boundvar` and `body` fields of each quantifier class, indexed by `quant_index`
+    pub quant_boundvar: [FieldId; 2],
+    pub quant_body: [FieldId; 2],
+
+    pub list_add: MethodId,
+    pub list_size: MethodId,
+    pub list_get: MethodId,
+
+    pub buffer_position: MethodId,
+    pub buffer_limit: MethodId,
+
+    pub rule: HandleClass,
+    pub rule_list: GlobalRef,
+    pub enum_name: MethodId,
+    pub rule_type: GlobalRef,
+    /// The `edu.rpi.aris.rules.Rule$Type` constants, indexed by `classification_index`
+    pub rule_type_values: [GlobalRef; 6],
+
+    pub rust_proof: HandleClass,
+
+    pub string: GlobalRef,
+}
+
+pub fn op_index(op: Op) -> usize {
+    match op {
+        Op::And => 0,
+        Op::Or => 1,
+        Op::Bicon => 2,
+        Op::Equiv => 3,
+        Op::Add => 4,
+        Op::Mult => 5,
+    }
+}
+
+pub fn quant_index(kind: QuantKind) -> usize {
+    match kind {
+        QuantKind::Forall => 0,
+        QuantKind::Exists => 1,
+    }
+}
+
+pub fn classification_index(classification: RuleClassification) -> usize {
+    use RuleClassification::*;
+    match classification {
+        Introduction => 0,
+        Elimination => 1,
+        BooleanEquivalence => 2,
+        ConditionalEquivalence => 3,
+        QuantifierEquivalence => 4,
+        MiscInference => 5,
+    }
+}
+
+impl Registry {
+    fn new(env: &JNIEnv) -> jni::errors::Result<Self> {
+        const EXPRESSION: &str = "Ledu/rpi/aris/ast/Expression;";
+        let e = |name: &str| ExprClass::new(env, &format!("edu/rpi/aris/ast/Expression${}", name));
+        let (contra, taut, var, apply, not, implication) = (e("ContradictionExpression")?, e("TautologyExpression")?, e("VarExpression")?, e("ApplyExpression")?, e("NotExpression")?, e("ImplicationExpression")?);
+        let (and, or, bicon, equiv, add, mult) = (e("AndExpression")?, e("OrExpression")?, e("BiconExpression")?, e("EquivExpression")?, e("AddExpression")?, e("MultExpression")?);
+        let (forall, exists) = (e("ForallExpression")?, e("ExistsExpression")?);
+
+        let f = |cls: &ExprClass, name: &str, sig: &str| FieldId::new(env, &cls.class, name, sig);
+        let assoc_exprs = |cls: &ExprClass| f(cls, "exprs", "Ljava/util/ArrayList;");
+        let boundvar = |cls: &ExprClass| f(cls, "boundvar", "Ljava/lang/String;");
+        let body = |cls: &ExprClass| f(cls, "body", EXPRESSION);
+
+        let list = global_class(env, "java/util/List")?;
+        let enum_class = global_class(env, "java/lang/Enum")?;
+        let buffer = global_class(env, "java/nio/Buffer")?;
+        let rule_type = global_class(env, "edu/rpi/aris/rules/Rule$Type")?;
+        let rule_type_value = |name: &str| -> jni::errors::Result<GlobalRef> {
+            let value = env.get_static_field(JClass::from(rule_type.as_obj()), name, "Ledu/rpi/aris/rules/Rule$Type;")?.l()?;
+            env.new_global_ref(value)
+        };
+        let rule_type_values = [rule_type_value("INTRO")?, rule_type_value("ELIM")?, rule_type_value("BOOL_EQUIVALENCE")?, rule_type_value("CONDITIONAL_EQUIVALENCE")?, rule_type_value("QUANTIFIER_EQUIVALENCE")?, rule_type_value("MISC_INFERENCE")?];
+
+        Ok(Registry {
+            var_name: f(&var, "name", "Ljava/lang/String;")?,
+            apply_func: f(&apply, "func", EXPRESSION)?,
+            apply_args: f(&apply, "args", "Ljava/util/List;")?,
+            not_operand: f(&not, "operand", EXPRESSION)?,
+            impl_left: f(&implication, "l", EXPRESSION)?,
+            impl_right: f(&implication, "r", EXPRESSION)?,
+            assoc_exprs: [assoc_exprs(&and)?, assoc_exprs(&or)?, assoc_exprs(&bicon)?, assoc_exprs(&equiv)?, assoc_exprs(&add)?, assoc_exprs(&mult)?],
+            quant_boundvar: [boundvar(&forall)?, boundvar(&exists)?],
+            quant_body: [body(&forall)?, body(&exists)?],
+
+            list_add: MethodId::new(env, &list, "add", "(Ljava/lang/Object;)Z")?,
+            list_size: MethodId::new(env, &list, "size", "()I")?,
+            list_get: MethodId::new(env, &list, "get", "(I)Ljava/lang/Object;")?,
+
+            buffer_position: MethodId::new(env, &buffer, "position", "()I")?,
+            buffer_limit: MethodId::new(env, &buffer, "limit", "()I")?,
+
+            rule: HandleClass::new(env, "edu/rpi/aris/rules/Rule")?,
+            rule_list: global_class(env, "edu/rpi/aris/rules/RuleList")?,
+            enum_name: MethodId::new(env, &enum_class, "name", "()Ljava/lang/String;")?,
+            rule_type_values,
+            rule_type,
+
+            rust_proof: HandleClass::new(env, "edu/rpi/aris/proof/RustProof")?,
+
+            string: global_class(env, "java/lang/String")?,
+
+            contra,
+            taut,
+            var,
+            apply,
+            not,
+            implication,
+            and,
+            or,
+            bicon,
+            equiv,
+            add,
+            mult,
+            forall,
+            exists,
+        })
+    }
+
+    pub fn expr_class(&self, kind: ExprKind) -> &ExprClass {
+        match kind {
+            ExprKind::Contra => &self.contra,
+            ExprKind::Taut => &self.taut,
+            ExprKind::Var => &self.var,
+            ExprKind::Apply => &self.apply,
+            ExprKind::Not => &self.not,
+            ExprKind::Impl => &self.implication,
+            ExprKind::Assoc(Op::And) => &self.and,
+            ExprKind::Assoc(Op::Or) => &self.or,
+            ExprKind::Assoc(Op::Bicon) => &self.bicon,
+            ExprKind::Assoc(Op::Equiv) => &self.equiv,
+            ExprKind::Assoc(Op::Add) => &self.add,
+            ExprKind::Assoc(Op::Mult) => &self.mult,
+            ExprKind::Quant(QuantKind::Forall) => &self.forall,
+            ExprKind::Quant(QuantKind::Exists) => &self.exists,
+        }
+    }
+
+    /// Determine which `Expression` subclass `obj` is by checking it against the cached classes
+    pub fn expr_kind(&self, env: &JNIEnv, obj: JObject) -> jni::errors::Result<ExprKind> {
+        for kind in EXPR_PROBE_ORDER.iter() {
+            if env.is_instance_of(obj, JClass::from(self.expr_class(*kind).class.as_obj()))? {
+                return Ok(*kind);
+            }
+        }
+        Err(jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg("jobject_to_expr: unknown subclass of edu.rpi.aris.ast.Expression".into())))
+    }
+}
@@ -1,33 +1,36 @@
 use super::*;
 
+use crate::java_registry::*;
+
+use aris::expr::Expr;
+use aris::proofs::java_shallow_proof::JavaShallowProof;
+use aris::proofs::PjRef;
 use aris::rules::Rule;
-use aris::rules::RuleClassification;
 use aris::rules::RuleM;
 use aris::rules::RuleT;
 
 use frunk_core::coproduct::Coproduct;
 
+use jni::signature::JavaType;
+
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_rules_Rule_fromRule(env: JNIEnv, _: JObject, rule: JObject) -> jobject {
     with_thrown_errors(&env, |env| {
-        let cls = env.call_method(rule, "getClass", "()Ljava/lang/Class;", &[])?.l()?;
-        let classname = String::from(env.get_string(JString::from(env.call_method(cls, "getName", "()Ljava/lang/String;", &[])?.l()?))?);
-        //println!("Rule.fromRule, rule class: {:?}", classname);
-        if classname != "edu.rpi.aris.rules.RuleList" {
+        let reg = registry(env)?;
+        if !env.is_instance_of(rule, JClass::from(reg.rule_list.as_obj()))? {
+            let cls = env.call_method(rule, "getClass", "()Ljava/lang/Class;", &[])?.l()?;
+            let classname = String::from(env.get_string(JString::from(env.call_method(cls, "getName", "()Ljava/lang/String;", &[])?.l()?))?);
             return Err(jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg(format!("Rule::fromRule: unknown class {}", classname))));
         }
 
-        let name = String::from(env.get_string(JString::from(env.call_method(rule, "name", "()Ljava/lang/String;", &[])?.l()?))?);
-        println!("Rule.fromRule, rule enum name: {:?}", name);
-        let rule = match RuleM::from_serialized_name(&name) {
-            Some(rule) => rule,
+        let name = jobject_to_string(env, env.call_method_unchecked(rule, reg.enum_name.id(), object_type(), &[])?.l()?)?;
+        let rule: &'static Rule = match RuleM::ALL_SERIALIZED_NAMES.iter().position(|n| *n == name) {
+            Some(i) => &RuleM::ALL_RULES[i],
             _ => return Err(jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg(format!("Rule::fromRule: unknown enum name {}", name)))),
         };
-        let boxed_rule = Box::into_raw(Box::new(rule)); // prevent boxed_rule from being freed, since it's to be referenced through the java heap
-
-        let jrule = env.new_object("edu/rpi/aris/rules/Rule", "(J)V", &[JValue::from(boxed_rule as jni::sys::jlong)]);
-        //println!("Rule.fromRule, boxed_rule: {:?}, jrule: {:?}", boxed_rule, jrule);
+        // rules are stateless and live in a static table, so the Java object can share it without owning anything
+        let jrule = reg.rule.wrap(env, rule as *const Rule as jni::sys::jlong);
         Ok(jrule?.into_inner())
     })
 }
@@ -36,7 +39,7 @@ pub extern "system" fn Java_edu_rpi_aris_rules_Rule_fromRule(env: JNIEnv, _: JOb
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_rules_Rule_toString(env: JNIEnv, obj: JObject) -> jstring {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(obj, "pointerToRustHeap", "J")?.j()?;
+        let ptr: jni::sys::jlong = registry(env)?.rule.get_pointer(env, obj)?;
         let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
         Ok(env.new_string(format!("{:?}", rule))?.into_inner())
     })
@@ -46,7 +49,7 @@ pub extern "system" fn Java_edu_rpi_aris_rules_Rule_toString(env: JNIEnv, obj: J
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_rules_Rule_getName(env: JNIEnv, obj: JObject) -> jstring {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(obj, "pointerToRustHeap", "J")?.j()?;
+        let ptr: jni::sys::jlong = registry(env)?.rule.get_pointer(env, obj)?;
         let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
         Ok(env.new_string(rule.get_name())?.into_inner())
     })
@@ -55,24 +58,14 @@ pub extern "system" fn Java_edu_rpi_aris_rules_Rule_getName(env: JNIEnv, obj: JO
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_rules_Rule_getRuleType(env: JNIEnv, obj: JObject) -> jarray {
-    let jv = |s: &str| -> jni::errors::Result<JValue> { Ok(JObject::from(env.new_string(s)?).into()) };
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(obj, "pointerToRustHeap", "J")?.j()?;
+        let reg = registry(env)?;
+        let ptr: jni::sys::jlong = reg.rule.get_pointer(env, obj)?;
         let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
         let classifications = rule.get_classifications();
-        let types = env.new_object_array(classifications.len() as _, "edu/rpi/aris/rules/Rule$Type", JObject::null())?;
-        let cls = env.call_static_method("java/lang/Class", "forName", "(Ljava/lang/String;)Ljava/lang/Class;", &[jv("edu.rpi.aris.rules.Rule$Type")?])?;
+        let types = env.new_object_array(classifications.len() as _, JClass::from(reg.rule_type.as_obj()), JObject::null())?;
         for (i, classification) in classifications.iter().enumerate() {
-            use RuleClassification::*;
-            let ty = match classification {
-                Introduction => env.call_static_method("java/lang/Enum", "valueOf", "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;", &[cls, jv("INTRO")?])?,
-                Elimination => env.call_static_method("java/lang/Enum", "valueOf", "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;", &[cls, jv("ELIM")?])?,
-                BooleanEquivalence => env.call_static_method("java/lang/Enum", "valueOf", "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;", &[cls, jv("BOOL_EQUIVALENCE")?])?,
-                ConditionalEquivalence => env.call_static_method("java/lang/Enum", "valueOf", "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;", &[cls, jv("CONDITIONAL_EQUIVALENCE")?])?,
-                QuantifierEquivalence => env.call_static_method("java/lang/Enum", "valueOf", "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;", &[cls, jv("QUANTIFIER_EQUIVALENCE")?])?,
-                MiscInference => env.call_static_method("java/lang/Enum", "valueOf", "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;", &[cls, jv("MISC_INFERENCE")?])?,
-            };
-            env.set_object_array_element(types, i as _, ty.l()?)?;
+            env.set_object_array_element(types, i as _, reg.rule_type_values[classification_index(*classification)].as_obj())?;
         }
         Ok(types)
     })
@@ -82,7 +75,7 @@ pub extern "system" fn Java_edu_rpi_aris_rules_Rule_getRuleType(env: JNIEnv, obj
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_rules_Rule_requiredPremises(env: JNIEnv, obj: JObject) -> jni::sys::jlong {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(obj, "pointerToRustHeap", "J")?.j()?;
+        let ptr: jni::sys::jlong = registry(env)?.rule.get_pointer(env, obj)?;
         let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
         Ok(rule.num_deps().unwrap_or(1) as _) // it looks like the java version represents generalizable premises as 1 premise, with the flag indicating >= instead of ==
     })
@@ -92,7 +85,7 @@ pub extern "system" fn Java_edu_rpi_aris_rules_Rule_requiredPremises(env: JNIEnv
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_rules_Rule_canGeneralizePremises(env: JNIEnv, obj: JObject) -> jni::sys::jboolean {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(obj, "pointerToRustHeap", "J")?.j()?;
+        let ptr: jni::sys::jlong = registry(env)?.rule.get_pointer(env, obj)?;
         let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
         Ok(if rule.num_deps().is_none() { 1 } else { 0 })
     })
@@ -102,42 +95,173 @@ pub extern "system" fn Java_edu_rpi_aris_rules_Rule_canGeneralizePremises(env: J
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_rules_Rule_subProofPremises(env: JNIEnv, obj: JObject) -> jni::sys::jlong {
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(obj, "pointerToRustHeap", "J")?.j()?;
+        let ptr: jni::sys::jlong = registry(env)?.rule.get_pointer(env, obj)?;
         let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
         Ok(rule.num_subdeps().unwrap_or(0) as _)
     })
 }
 
+/// A claim converted out of Java objects, ready to be checked on any thread
+pub struct DecodedClaim {
+    pub conclusion: Expr,
+    pub deps: Vec<PjRef<JavaShallowProof>>,
+    pub sdeps: Vec<JavaShallowProof>,
+}
+
+impl DecodedClaim {
+    /// Check the claim against `rule`, returning the error message if it doesn't hold
+    pub fn check(self, rule: &Rule) -> Option<String> {
+        aris::metrics::time_rule_check(rule, || aris::rule_cache::check(*rule, &JavaShallowProof(vec![]), self.conclusion, self.deps, self.sdeps)).err().map(|e| format!("{}", e))
+    }
+}
+
+/// Call a no-argument method of a `Premise`, through its cached ID if the class was resolved, or by name (the way `verifyClaim` always used to) if it wasn't
+fn call_premise_method<'a>(env: &JNIEnv<'a>, prem: JObject<'a>, cached: Option<MethodId>, name: &str, sig: &str, ret: JavaType) -> jni::errors::Result<JValue<'a>> {
+    match cached {
+        Some(method) => env.call_method_unchecked(prem, method.id(), ret, &[]),
+        None => env.call_method(prem, name, sig, &[]),
+    }
+}
+
+/// Convert a conclusion and an array of `edu.rpi.aris.rules.Premise` into a `DecodedClaim`
+pub fn decode_claim(env: &JNIEnv, conclusion: JObject, premises: jarray) -> jni::errors::Result<DecodedClaim> {
+    let premise = premise_class(env)?;
+    let conclusion = jobject_to_expr(env, conclusion)?;
+    let prem_len = env.get_array_length(premises)?;
+    let mut deps = vec![];
+    let mut sdeps = vec![];
+    for i in 0..prem_len {
+        let prem = env.get_object_array_element(premises, i)?;
+        let call = |method: fn(&PremiseClass) -> MethodId, name: &str, sig: &str| call_premise_method(env, prem, premise.map(method), name, sig, object_type());
+        if call_premise_method(env, prem, premise.map(|p| p.is_subproof), "isSubproof", "()Z", boolean_type())?.z()? {
+            let mut sdep = JavaShallowProof(vec![]);
+            sdep.0.push(jobject_to_expr(env, call(|p| p.get_assumption, "getAssumption", "()Ledu/rpi/aris/ast/Expression;")?.l()?)?);
+            let lines = call(|p| p.get_subproof_lines, "getSubproofLines", "()[Ledu/rpi/aris/ast/Expression;")?.l()?;
+            for j in 0..env.get_array_length(lines.into_inner())? {
+                sdep.0.push(jobject_to_expr(env, env.get_object_array_element(lines.into_inner(), j)?)?);
+            }
+            sdeps.push(sdep);
+        } else {
+            deps.push(Coproduct::Inl(jobject_to_expr(env, call(|p| p.get_premise, "getPremise", "()Ledu/rpi/aris/ast/Expression;")?.l()?)?));
+        }
+        env.delete_local_ref(prem)?;
+    }
+    Ok(DecodedClaim { conclusion, deps, sdeps })
+}
+
+/// Convert an array of `edu.rpi.aris.rules.Claim`
+fn decode_claims(env: &JNIEnv, claims: jarray) -> jni::errors::Result<Vec<DecodedClaim>> {
+    let class = claim_class(env)?;
+    let len = env.get_array_length(claims)?;
+    let mut ret = Vec::with_capacity(len as usize);
+    for i in 0..len {
+        let claim = env.get_object_array_element(claims, i)?;
+        let conclusion = env.call_method_unchecked(claim, class.get_conclusion.id(), object_type(), &[])?.l()?;
+        let premises = env.call_method_unchecked(claim, class.get_premises.id(), object_type(), &[])?.l()?;
+        ret.push(decode_claim(env, conclusion, premises.into_inner())?);
+        env.delete_local_ref(claim)?;
+    }
+    Ok(ret)
+}
+
+/// Build a `String[]` with one entry per claim, `null` for the claims that passed
+fn check_results_to_jarray(env: &JNIEnv, results: Vec<Option<String>>) -> jni::errors::Result<jarray> {
+    let arr = env.new_object_array(results.len() as _, JClass::from(registry(env)?.string.as_obj()), JObject::null())?;
+    for (i, result) in results.into_iter().enumerate() {
+        if let Some(msg) = result {
+            let s = env.new_string(msg)?;
+            env.set_object_array_element(arr, i as _, JObject::from(s))?;
+            env.delete_local_ref(JObject::from(s))?;
+        }
+    }
+    Ok(arr)
+}
+
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern "system" fn Java_edu_rpi_aris_rules_Rule_verifyClaim(env: JNIEnv, ruleobj: JObject, conclusion: JObject, premises: jarray) -> jstring {
-    use aris::proofs::java_shallow_proof::JavaShallowProof;
     with_thrown_errors(&env, |env| {
-        let ptr: jni::sys::jlong = env.get_field(ruleobj, "pointerToRustHeap", "J")?.j()?;
+        let ptr: jni::sys::jlong = registry(env)?.rule.get_pointer(env, ruleobj)?;
         let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
-        let conc = jobject_to_expr(env, conclusion)?;
-        let prem_len = env.get_array_length(premises)?;
-        println!("Rule::verifyClaim conclusion: {:?}, {} premises", conc, prem_len);
+        if let Some(e) = decode_claim(env, conclusion, premises)?.check(rule) {
+            Ok(env.new_string(e)?.into_inner())
+        } else {
+            Ok(std::ptr::null_mut())
+        }
+    })
+}
+
+/// Check many claims against this rule at once: `String[] verifyClaims(Claim[] claims)`.
+/// All claims are converted on the calling thread (JNI references can't be shared), then checked in parallel.
+/// The result holds the error message for each failing claim, and `null` for each claim that passes.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_rules_Rule_verifyClaims(env: JNIEnv, ruleobj: JObject, claims: jarray) -> jarray {
+    with_thrown_errors(&env, |env| {
+        let ptr: jni::sys::jlong = registry(env)?.rule.get_pointer(env, ruleobj)?;
+        let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
+        let claims = decode_claims(env, claims)?;
+        let results = parallel_map(claims, |claim| claim.check(rule));
+        check_results_to_jarray(env, results)
+    })
+}
+
+/// Check a batch of claims that may each use a different rule: `static String[] verifyAll(Rule[] rules, Claim[] claims)`, where `rules[i]` justifies `claims[i]`.
+/// This is what re-validating a whole proof needs, and is checked in parallel like `verifyClaims`.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_rules_Rule_verifyAll(env: JNIEnv, _cls: JClass, rules: jarray, claims: jarray) -> jarray {
+    with_thrown_errors(&env, |env| {
+        let reg = registry(env)?;
+        let len = env.get_array_length(rules)?;
+        if len != env.get_array_length(claims)? {
+            return Err(jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg("Rule::verifyAll: rules and claims must have the same length".into())));
+        }
+        let mut rule_ptrs = Vec::with_capacity(len as usize);
+        for i in 0..len {
+            let ruleobj = env.get_object_array_element(rules, i)?;
+            rule_ptrs.push(reg.rule.get_pointer(env, ruleobj)? as usize);
+            env.delete_local_ref(ruleobj)?;
+        }
+        let jobs = rule_ptrs.into_iter().zip(decode_claims(env, claims)?).collect::<Vec<_>>();
+        let results = parallel_map(jobs, |(ptr, claim)| {
+            let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
+            claim.check(rule)
+        });
+        check_results_to_jarray(env, results)
+    })
+}
+
+/// Like `verifyClaim`, but with the conclusion and premises packed into one `aris::wire` message, so that the whole claim crosses JNI in a single array copy.
+/// The message holds the conclusion followed by the premises' expressions in order.
+/// `shape` has one entry per premise: `0` for an ordinary premise (one expression), or `n > 0` for a subproof of `n` expressions (its assumption, then its lines).
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_rules_Rule_verifyClaimEncoded(env: JNIEnv, ruleobj: JObject, claim: jni::sys::jbyteArray, shape: jni::sys::jintArray) -> jstring {
+    with_thrown_errors(&env, |env| {
+        let ptr: jni::sys::jlong = registry(env)?.rule.get_pointer(env, ruleobj)?;
+        let rule: &Rule = unsafe { &*(ptr as *mut Rule) };
+        let malformed = |msg: String| jni::errors::Error::from_kind(jni::errors::ErrorKind::Msg(format!("Rule::verifyClaimEncoded: {}", msg)));
+        let exprs = aris::wire::decode_exprs(&jarray_to_bytes(env, claim)?).map_err(|e| malformed(format!("{}", e)))?;
+        let mut shape_buf = vec![0; env.get_array_length(shape)? as usize];
+        env.get_int_array_region(shape, 0, &mut shape_buf)?;
+        let expected = 1 + shape_buf.iter().map(|&n| std::cmp::max(n, 1) as usize).sum::<usize>();
+        if exprs.len() != expected {
+            return Err(malformed(format!("shape describes {} expressions, but {} were sent", expected, exprs.len())));
+        }
+        let mut exprs = exprs.into_iter();
+        let conc = exprs.next().unwrap();
         let mut deps = vec![];
         let mut sdeps = vec![];
-        for i in 0..prem_len {
-            let prem = env.get_object_array_element(premises, i)?;
-            //println!("prem[{}] {:?}", i, prem);
-            if env.call_method(prem, "isSubproof", "()Z", &[])?.z()? {
-                let mut sdep = JavaShallowProof(vec![]);
-                sdep.0.push(jobject_to_expr(env, env.call_method(prem, "getAssumption", "()Ledu/rpi/aris/ast/Expression;", &[])?.l()?)?);
-                let lines = env.call_method(prem, "getSubproofLines", "()[Ledu/rpi/aris/ast/Expression;", &[])?.l()?;
-                for j in 0..env.get_array_length(lines.into_inner())? {
-                    sdep.0.push(jobject_to_expr(env, env.get_object_array_element(lines.into_inner(), j)?)?);
-                }
-                sdeps.push(sdep);
+        for n in shape_buf {
+            if n > 0 {
+                sdeps.push(JavaShallowProof(exprs.by_ref().take(n as usize).collect()));
             } else {
-                deps.push(Coproduct::Inl(jobject_to_expr(env, env.call_method(prem, "getPremise", "()Ledu/rpi/aris/ast/Expression;", &[])?.l()?)?));
+                deps.push(Coproduct::Inl(exprs.next().unwrap()));
             }
         }
-        println!("Rule::verifyClaim deps: {:?} {:?}", deps, sdeps);
-        if let Err(e) = rule.check(&JavaShallowProof(vec![]), conc, deps, sdeps) {
-            Ok(env.new_string(format!("{}", e))?.into_inner())
+        if let Some(e) = (DecodedClaim { conclusion: conc, deps, sdeps }).check(rule) {
+            Ok(env.new_string(e)?.into_inner())
         } else {
             Ok(std::ptr::null_mut())
         }
@@ -0,0 +1,71 @@
+//! Natives for `edu.rpi.aris.RustStats`, which exposes `aris::metrics` to Java:
+//!
+//! ```java
+//! public class RustStats {
+//!     public static native void setEnabled(boolean enabled);
+//!     public static native void reset();
+//!     public static native long[] snapshot(); // layout documented in aris::metrics
+//!     public static native String[] ruleNames(); // RuleList names, in the order of the per-rule sections of snapshot()
+//!     public static native void setRuleCacheCapacity(int capacity); // see aris::rule_cache; 0 turns it off
+//! }
+//! ```
+
+use super::*;
+
+use crate::java_registry::*;
+
+use aris::metrics;
+use aris::rule_cache;
+use aris::rules::RuleM;
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_RustStats_setEnabled(env: JNIEnv, _cls: JClass, enabled: jni::sys::jboolean) {
+    with_thrown_errors(&env, |_| {
+        metrics::set_enabled(enabled != 0);
+        Ok(())
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_RustStats_reset(env: JNIEnv, _cls: JClass) {
+    with_thrown_errors(&env, |_| {
+        metrics::reset();
+        Ok(())
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_RustStats_setRuleCacheCapacity(env: JNIEnv, _cls: JClass, capacity: jni::sys::jint) {
+    with_thrown_errors(&env, |_| {
+        rule_cache::set_capacity(std::cmp::max(capacity, 0) as usize);
+        Ok(())
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_RustStats_snapshot(env: JNIEnv, _cls: JClass) -> jni::sys::jlongArray {
+    with_thrown_errors(&env, |env| {
+        let values = metrics::snapshot().into_iter().map(|x| x as jni::sys::jlong).collect::<Vec<_>>();
+        let arr = env.new_long_array(values.len() as _)?;
+        env.set_long_array_region(arr, 0, &values)?;
+        Ok(arr)
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn Java_edu_rpi_aris_RustStats_ruleNames(env: JNIEnv, _cls: JClass) -> jarray {
+    with_thrown_errors(&env, |env| {
+        let arr = env.new_object_array(RuleM::ALL_SERIALIZED_NAMES.len() as _, JClass::from(registry(env)?.string.as_obj()), JObject::null())?;
+        for (i, name) in RuleM::ALL_SERIALIZED_NAMES.iter().enumerate() {
+            let s = env.new_string(name)?;
+            env.set_object_array_element(arr, i as _, JObject::from(s))?;
+            env.delete_local_ref(JObject::from(s))?;
+        }
+        Ok(arr)
+    })
+}
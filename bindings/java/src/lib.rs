@@ -1,48 +1,224 @@
 pub mod java_expression;
+pub mod java_handles;
+pub mod java_native_expression;
 pub mod java_rule;
 use java_expression::*;
 pub mod java_proof;
+pub mod java_registry;
+pub mod java_stats;
 
 use jni::objects::{JClass, JObject, JString, JValue};
 use jni::strings::JavaStr;
-use jni::sys::{jarray, jobject, jstring};
-use jni::JNIEnv;
+use jni::sys::{jarray, jint, jobject, jstring};
+use jni::{JNIEnv, JavaVM};
 
-use std::panic::{catch_unwind, UnwindSafe};
+use lazy_static::lazy_static;
+
+use std::any::Any;
+use std::cell::{Cell, RefCell};
+use std::panic::{catch_unwind, AssertUnwindSafe, PanicInfo, UnwindSafe};
+use std::sync::mpsc::{channel, Sender};
+use std::sync::{Arc, Mutex, Once};
 
 fn jobject_to_string(env: &JNIEnv, obj: JObject) -> jni::errors::Result<String> {
     Ok(String::from(env.get_string(JString::from(obj))?))
 }
 
-/// Calls a Rust function on each Java object of a Java Iterator
-pub fn java_iterator_for_each<F: FnMut(JObject) -> jni::errors::Result<()>>(env: &JNIEnv, iterable: JObject, mut f: F) -> jni::errors::Result<()> {
-    let iter = env.call_method(iterable, "iterator", "()Ljava/util/Iterator;", &[])?.l()?;
-    while env.call_method(iter, "hasNext", "()Z", &[])?.z()? {
-        let obj = env.call_method(iter, "next", "()Ljava/lang/Object;", &[])?.l()?;
-        f(obj)?
+/// Calls a Rust function on each element of a `java.util.List`, using the cached `size`/`get` method IDs
+pub fn java_list_for_each<F: FnMut(JObject) -> jni::errors::Result<()>>(env: &JNIEnv, list: JObject, mut f: F) -> jni::errors::Result<()> {
+    use java_registry::{int_type, object_type, registry};
+    let reg = registry(env)?;
+    let len = env.call_method_unchecked(list, reg.list_size.id(), int_type(), &[])?.i()?;
+    for i in 0..len {
+        let obj = env.call_method_unchecked(list, reg.list_get.id(), object_type(), &[JValue::from(i)])?.l()?;
+        f(obj)?;
+        env.delete_local_ref(obj)?;
     }
     Ok(())
 }
 
-/// Wraps a Rust function, converting both Result::Err and panic into instances of Java's RuntimeException.
-/// Please use this on all native methods, otherwise a Rust panic/unwrap will crash the Java UI instead of popping a dialog box with the message.
-pub fn with_thrown_errors<A, F: FnOnce(&JNIEnv) -> jni::errors::Result<A> + UnwindSafe>(env: &JNIEnv, f: F) -> A {
-    use std::panic::{set_hook, take_hook, PanicInfo};
-    let old_hook = take_hook();
-    let (tx, rx) = std::sync::mpsc::channel::<String>();
-    let mtx = std::sync::Mutex::new(tx);
-    set_hook(Box::new(move |info: &PanicInfo| {
-        let mut msg = format!("Panic at {:?}", info.location());
-        if let Some(e) = info.payload().downcast_ref::<&str>() {
-            msg += &*format!(": {:?}", e);
+/// A job for `WorkerPool`
+type Job = Box<dyn FnOnce() + Send + 'static>;
+
+/// Long-lived threads for `parallel_map`, one per available core. Since they outlive any one call, per-thread state such as
+/// the SAT session `aris::sat` keeps for tautological consequence checks carries over from one batch to the next, where fresh
+/// threads would start every batch with an empty session.
+struct WorkerPool {
+    jobs: Mutex<Sender<Job>>,
+    /// Number of threads that were started
+    threads: usize,
+}
+
+thread_local! {
+    /// Whether this is one of `POOL`'s threads, which mustn't wait on the pool themselves
+    static IN_POOL: Cell<bool> = Cell::new(false);
+}
+
+impl WorkerPool {
+    fn new() -> Self {
+        let (jobs, queue) = channel::<Job>();
+        let queue = Arc::new(Mutex::new(queue));
+        let wanted = std::thread::available_parallelism().map(|n| n.get()).unwrap_or(1);
+        let mut threads = 0;
+        for i in 0..wanted {
+            let queue = Arc::clone(&queue);
+            let spawned = std::thread::Builder::new().name(format!("aris-worker-{}", i)).spawn(move || {
+                IN_POOL.with(|in_pool| in_pool.set(true));
+                loop {
+                    // the queue is unlocked again as soon as a job is received, before running it
+                    let job = match queue.lock().unwrap_or_else(|e| e.into_inner()).recv() {
+                        Ok(job) => job,
+                        Err(_) => return,
+                    };
+                    // jobs catch their own panics, but the thread has to outlive one that doesn't
+                    let _ = catch_unwind(AssertUnwindSafe(job));
+                }
+            });
+            if spawned.is_ok() {
+                threads += 1;
+            }
         }
-        if let Some(e) = info.payload().downcast_ref::<String>() {
-            msg += &*format!(": {:?}", e);
+        WorkerPool { jobs: Mutex::new(jobs), threads }
+    }
+    /// Queue a job for the next free thread. If there's none left, the job is dropped without running.
+    fn submit(&self, job: Job) {
+        let _ = self.jobs.lock().unwrap_or_else(|e| e.into_inner()).send(job);
+    }
+}
+
+lazy_static! {
+    static ref POOL: WorkerPool = WorkerPool::new();
+}
+
+/// Applies `f` to every item on the shared worker pool (one thread per available core), returning the results in the original order.
+/// Items are handed out one at a time through a shared counter, so a few expensive items don't hold up a whole chunk.
+pub fn parallel_map<T: Send, U: Send, F: Fn(T) -> U + Sync>(items: Vec<T>, f: F) -> Vec<U> {
+    use std::sync::atomic::{AtomicUsize, Ordering};
+    let n = items.len();
+    // a pool thread waiting on the pool could wait on itself
+    let threads = if IN_POOL.with(Cell::get) { 1 } else { POOL.threads.min(n) };
+    if threads <= 1 {
+        return items.into_iter().map(f).collect();
+    }
+    let slots: Vec<Mutex<Option<T>>> = items.into_iter().map(|item| Mutex::new(Some(item))).collect();
+    let next = AtomicUsize::new(0);
+    let (done, finished) = channel();
+    {
+        let (f, slots, next) = (&f, &slots, &next);
+        for _ in 0..threads {
+            let done = done.clone();
+            let job: Box<dyn FnOnce() + Send + '_> = Box::new(move || {
+                let mut results = vec![];
+                let outcome = loop {
+                    let i = next.fetch_add(1, Ordering::Relaxed);
+                    if i >= n {
+                        break Ok(results);
+                    }
+                    let item = slots[i].lock().unwrap_or_else(|e| e.into_inner()).take().expect("parallel_map: item taken twice");
+                    match catch_unwind(AssertUnwindSafe(|| f(item))) {
+                        Ok(result) => results.push((i, result)),
+                        Err(payload) => break Err((take_panic_message(), payload)),
+                    }
+                };
+                let _ = done.send(outcome);
+            });
+            // SAFETY: the job only borrows from this call, which doesn't return or unwind until every job has dropped its
+            // sender, either by finishing or by being dropped without running
+            let job = unsafe { std::mem::transmute::<Box<dyn FnOnce() + Send + '_>, Job>(job) };
+            POOL.submit(job);
         }
-        if let Ok(tx) = mtx.lock() {
-            let _ = tx.send(msg);
+    }
+    drop(done);
+    let mut results: Vec<Option<U>> = (0..n).map(|_| None).collect();
+    let mut panicked = None;
+    for outcome in finished.iter() {
+        match outcome {
+            Ok(done) => {
+                for (i, result) in done {
+                    results[i] = Some(result);
+                }
+            }
+            Err(panic) => panicked = panicked.or(Some(panic)),
         }
-    }));
+    }
+    if let Some((msg, payload)) = panicked {
+        resume_panic_from(msg, payload);
+    }
+    results.into_iter().map(|result| result.expect("parallel_map: missing result")).collect()
+}
+
+/// Copies bytes into a new Java `byte[]`, counting them towards `aris::metrics`
+pub fn bytes_to_jarray(env: &JNIEnv, bytes: &[u8]) -> jni::errors::Result<jni::sys::jbyteArray> {
+    aris::metrics::count(aris::metrics::Counter::BytesMarshalled, bytes.len() as u64);
+    env.byte_array_from_slice(bytes)
+}
+
+/// Copies a Java `byte[]` into a `Vec`, counting the bytes towards `aris::metrics`
+pub fn jarray_to_bytes(env: &JNIEnv, arr: jni::sys::jbyteArray) -> jni::errors::Result<Vec<u8>> {
+    let bytes = env.convert_byte_array(arr)?;
+    aris::metrics::count(aris::metrics::Counter::BytesMarshalled, bytes.len() as u64);
+    Ok(bytes)
+}
+
+/// Installs the panic hook and resolves the JNI registry when the library is loaded, so that native calls never need to look up classes by name
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern "system" fn JNI_OnLoad(vm: *mut jni::sys::JavaVM, _reserved: *mut std::os::raw::c_void) -> jint {
+    install_panic_hook();
+    if let Ok(vm) = unsafe { JavaVM::from_raw(vm) } {
+        if let Ok(env) = vm.get_env() {
+            if java_registry::registry(&env).is_err() {
+                // leave resolution to the first native call, which will surface the error as an exception
+                let _ = env.exception_clear();
+            }
+        }
+    }
+    jni::sys::JNI_VERSION_1_6
+}
+
+thread_local! {
+    /// The message of the most recent panic on this thread, recorded by the hook from `install_panic_hook`
+    static PANIC_MESSAGE: RefCell<Option<String>> = RefCell::new(None);
+}
+
+/// Replaces the default panic hook (which prints to stderr) with one that stashes the message in `PANIC_MESSAGE`, for `with_thrown_errors` to turn into an exception.
+/// This only does work the first time it's called; the hook is process-wide, but each thread only ever sees its own messages.
+pub fn install_panic_hook() {
+    static INSTALL: Once = Once::new();
+    INSTALL.call_once(|| {
+        std::panic::set_hook(Box::new(|info: &PanicInfo| {
+            let mut msg = format!("Panic at {:?}", info.location());
+            if let Some(e) = info.payload().downcast_ref::<&str>() {
+                msg += &*format!(": {:?}", e);
+            }
+            if let Some(e) = info.payload().downcast_ref::<String>() {
+                msg += &*format!(": {:?}", e);
+            }
+            // try_with, since a panic during thread teardown can't touch thread locals
+            let _ = PANIC_MESSAGE.try_with(|slot| *slot.borrow_mut() = Some(msg));
+        }));
+    });
+}
+
+/// Takes the message of the most recent panic on this thread, if any
+pub fn take_panic_message() -> Option<String> {
+    PANIC_MESSAGE.with(|slot| slot.borrow_mut().take())
+}
+
+/// Continues a panic caught on another thread on this one, carrying over its message so `with_thrown_errors` reports the original location
+pub fn resume_panic_from(msg: Option<String>, payload: Box<dyn Any + Send>) -> ! {
+    PANIC_MESSAGE.with(|slot| *slot.borrow_mut() = msg);
+    std::panic::resume_unwind(payload)
+}
+
+/// Wraps a Rust function, converting both Result::Err and panic into instances of Java's RuntimeException.
+/// Please use this on all native methods, otherwise a Rust panic/unwrap will crash the Java UI instead of popping a dialog box with the message.
+pub fn with_thrown_errors<A, F: FnOnce(&JNIEnv) -> jni::errors::Result<A> + UnwindSafe>(env: &JNIEnv, f: F) -> A {
+    install_panic_hook();
+    // a message left over from a panic that something else caught mustn't be reported for this call
+    let _ = take_panic_message();
+    let timing = aris::metrics::start();
+    aris::metrics::count(aris::metrics::Counter::ForeignCalls, 1);
     let ret = catch_unwind(|| {
         f(env).unwrap_or_else(|e| {
             let _ = env.throw_new("java/lang/RuntimeException", &*format!("{:?}", e));
@@ -51,10 +227,10 @@ pub fn with_thrown_errors<A, F: FnOnce(&JNIEnv) -> jni::errors::Result<A> + Unwi
     })
     .unwrap_or_else(|_| {
         // handle panic
-        let msg = rx.recv().unwrap_or_else(|_| "with_thrown_errors: recv failed".to_string());
+        let msg = take_panic_message().unwrap_or_else(|| "with_thrown_errors: panic without a message".to_string());
         let _ = env.throw_new("java/lang/RuntimeException", msg);
         unsafe { std::mem::zeroed() }
     });
-    set_hook(old_hook);
+    timing.record(aris::metrics::Timer::ForeignCall);
     ret
 }